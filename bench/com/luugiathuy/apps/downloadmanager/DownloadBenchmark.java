@@ -0,0 +1,197 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Benchmark of the download data path: downloads a file from an in-process
+ * RangeServer for each combination of file size, buffer size and number of
+ * connections. Each iteration is one download; besides its time, the
+ * throughput, the bytes allocated and the CPU time per GB of the
+ * downloading threads are reported.
+ * 
+ * Usage: java -jar target/benchmarks.jar DownloadBenchmark [-p source=memory|disk]
+ * [-p sizeMB=n,...] [-p bufferKB=n,...] [-p connections=n,...] [-wi n] [-i n]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+	
+	private static final double GB = 1024.0 * 1024 * 1024;
+	
+	/** Where the file is served from, memory or disk */
+	@Param({"memory"})
+	public String source;
+	
+	@Param({"16", "256"})
+	public int sizeMB;
+	
+	@Param({"8", "64", "256"})
+	public int bufferKB;
+	
+	@Param({"1", "4", "8"})
+	public int connections;
+	
+	// Member variables
+	private RangeServer mServer;
+	private Path mFolder;
+	private File mOutputFolder;
+	private Path mFile;
+	private long mFileSize;
+	
+	/**
+	 * The resources used by a download, reported next to its time. The
+	 * values of the iterations are summed, so each holds its share of the
+	 * average.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Resources {
+		public double megabytesPerSecond;
+		public double allocatedMBPerGB;
+		public double cpuSecondsPerGB;
+	}
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		// the downloads log every segment
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		
+		mFileSize = sizeMB * 1024L * 1024L;
+		mFolder = Files.createTempDirectory("bench");
+		if (source.equals("disk")) {
+			mFile = createFile(mFolder, mFileSize);
+			mServer = new RangeServer(mFile);
+		} else {
+			byte[] data = new byte[(int)mFileSize];
+			new Random(42).nextBytes(data);
+			mServer = new RangeServer(data);
+		}
+		mOutputFolder = Files.createDirectories(mFolder.resolve("out")).toFile();
+		
+		DownloadManager manager = DownloadManager.getInstance();
+		manager.setAdaptiveConnections(false);
+		manager.setMaxActiveDownloads(1);
+		manager.setBufferSize(bufferKB * 1024);
+		manager.SetNumConnPerDownload(connections);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mServer.stop();
+		if (mFile != null)
+			Files.delete(mFile);
+	}
+	
+	/**
+	 * Download the file once
+	 * @throws Exception
+	 */
+	@Benchmark
+	public void download(Resources resources, BenchmarkParams params) throws Exception {
+		String fileName = "bench.bin";
+		new File(mOutputFolder, fileName).delete();
+		
+		ResourceSampler sampler = new ResourceSampler();
+		sampler.start();
+		final CountDownLatch done = new CountDownLatch(1);
+		long startTime = System.nanoTime();
+		DownloadManager manager = DownloadManager.getInstance();
+		Downloader download = manager.createDownload(mServer.getURL(fileName), mOutputFolder.getPath() + "/");
+		download.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				int state = ((Downloader)o).getState();
+				if (state == Downloader.COMPLETED || state == Downloader.ERROR)
+					done.countDown();
+			}
+		});
+		// it may be over before the observer was added
+		if (download.getState() == Downloader.COMPLETED || download.getState() == Downloader.ERROR)
+			done.countDown();
+		
+		if (!done.await(10, TimeUnit.MINUTES))
+			throw new IOException("Download timed out");
+		long elapsed = System.nanoTime() - startTime;
+		sampler.stop();
+		if (download.getState() != Downloader.COMPLETED)
+			throw new IOException("Download failed");
+		
+		double gigabytes = mFileSize / GB;
+		int iterations = params.getMeasurement().getCount();
+		resources.megabytesPerSecond = gigabytes * 1024 / (elapsed / 1e9) / iterations;
+		resources.allocatedMBPerGB = sampler.getAllocatedBytes() / gigabytes / (1024 * 1024) / iterations;
+		resources.cpuSecondsPerGB = sampler.getCpuTime() / 1e9 / gigabytes / iterations;
+		
+		manager.removeDownload(manager.getDownloadList().indexOf(download));
+	}
+	
+	private static Path createFile(Path folder, long size) throws IOException {
+		Path file = folder.resolve("source.bin");
+		RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+		try {
+			byte[] chunk = new byte[1024 * 1024];
+			Random random = new Random(42);
+			for (long written = 0; written < size; written += chunk.length) {
+				random.nextBytes(chunk);
+				raf.write(chunk, 0, (int)Math.min(chunk.length, size - written));
+			}
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+}
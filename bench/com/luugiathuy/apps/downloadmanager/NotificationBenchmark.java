@@ -0,0 +1,151 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Benchmark of Downloader.downloaded(), called by every download thread
+ * after each read. All benchmark threads add to one download, which is
+ * either published by a ProgressTicker or notifies its observer on every
+ * call. Besides the time per call, the number of notifications the
+ * observer received over the measurement is reported; the bytes allocated
+ * per call are reported with -prof gc.
+ * 
+ * Usage: java -jar target/benchmarks.jar NotificationBenchmark [-p publish=ticker|direct]
+ * [-t threads] [-prof gc]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class NotificationBenchmark {
+	
+	private static final int READ_SIZE = 8192;
+	
+	/** How the progress is published, by a ticker or on every call */
+	@Param({"ticker", "direct"})
+	public String publish;
+	
+	// Member variables
+	private CountingDownloader mDownload;
+	private ProgressTicker mTicker;
+	private AtomicLong mNotifications;
+	
+	/**
+	 * Download which is never run, only counts the bytes
+	 */
+	private static class CountingDownloader extends Downloader {
+		
+		public CountingDownloader(URL url) {
+			super(url, "", 1);
+		}
+		
+		@Override
+		public void run() {
+		}
+		
+		@Override
+		protected DownloadThread createDownloadThread(int threadID, long startByte, long endByte) {
+			return null;
+		}
+	}
+	
+	/**
+	 * The notifications of an iteration, counted by the first thread only
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Notifications {
+		public long notifications;
+		
+		@TearDown(Level.Iteration)
+		public void count(NotificationBenchmark benchmark, ThreadParams threadParams) {
+			if (threadParams.getThreadIndex() == 0)
+				notifications = benchmark.mNotifications.getAndSet(0);
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		// the downloads log to the standard output
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		
+		mDownload = new CountingDownloader(new URL("http://localhost/bench.bin"));
+		mDownload.mFileSize = Long.MAX_VALUE;
+		mNotifications = new AtomicLong();
+		mDownload.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				mNotifications.incrementAndGet();
+			}
+		});
+		if (publish.equals("ticker")) {
+			mTicker = new ProgressTicker(10);
+			mTicker.register(mDownload);
+		}
+	}
+	
+	@Setup(Level.Iteration)
+	public void startIteration() {
+		mNotifications.set(0);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (mTicker != null)
+			mTicker.unregister(mDownload);
+	}
+	
+	@Benchmark
+	public void downloaded(Notifications notifications) {
+		mDownload.downloaded(READ_SIZE);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server for the benchmarks, serving a single file from
+ * memory or from disk. It answers HEAD and GET requests and supports a
+ * single byte range per request.
+ */
+public class RangeServer implements HttpHandler {
+	
+	/** Prefix of the names of the server's threads */
+	public static final String THREAD_NAME = "RangeServer";
+	
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	// Member variables
+	private HttpServer mServer;
+	private ExecutorService mExecutor;
+	private byte[] mData;
+	private Path mFile;
+	private long mSize;
+	
+	/**
+	 * Serve the given bytes
+	 * @throws IOException
+	 */
+	public RangeServer(byte[] data) throws IOException {
+		mData = data;
+		mSize = data.length;
+		start();
+	}
+	
+	/**
+	 * Serve the content of a file, read on every request
+	 * @throws IOException
+	 */
+	public RangeServer(Path file) throws IOException {
+		mFile = file;
+		mSize = file.toFile().length();
+		start();
+	}
+	
+	private void start() throws IOException {
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// named so the benchmarks can leave the server's threads out of their measurements
+		mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, THREAD_NAME + "-" + mCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/", this);
+		mServer.start();
+	}
+	
+	/**
+	 * Get the URL of the file with the given name, any name serves the same content
+	 * @throws IOException
+	 */
+	public URL getURL(String fileName) throws IOException {
+		return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/" + fileName);
+	}
+	
+	public void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+	
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		long startByte = 0;
+		long endByte = mSize - 1;
+		int code = 200;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=")) {
+			String[] bytes = range.substring(6).split("-");
+			startByte = Long.parseLong(bytes[0]);
+			if (bytes.length > 1 && bytes[1].length() > 0)
+				endByte = Math.min(endByte, Long.parseLong(bytes[1]));
+			code = 206;
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + startByte + "-" + endByte + "/" + mSize);
+		}
+		exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+		
+		long length = endByte - startByte + 1;
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().add("Content-Length", Long.toString(length));
+			exchange.sendResponseHeaders(code, -1);
+			exchange.close();
+			return;
+		}
+		
+		exchange.sendResponseHeaders(code, length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			if (mData != null)
+				writeData(out, (int)startByte, (int)length);
+			else
+				writeFile(out, startByte, length);
+		} catch (IOException e) {
+			// the client closed the connection, e.g. to split the range
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private void writeData(OutputStream out, int offset, int length) throws IOException {
+		// the server copies what is written at once into a buffer of its own
+		for (int end = offset + length; offset < end; offset += CHUNK_SIZE)
+			out.write(mData, offset, Math.min(CHUNK_SIZE, end - offset));
+	}
+	
+	private void writeFile(OutputStream out, long position, long length) throws IOException {
+		FileChannel channel = FileChannel.open(mFile, StandardOpenOption.READ);
+		try {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			while (length > 0) {
+				buffer.clear();
+				if (length < CHUNK_SIZE)
+					buffer.limit((int)length);
+				int numRead = channel.read(buffer, position);
+				if (numRead == -1)
+					break;
+				out.write(chunk, 0, numRead);
+				position += numRead;
+				length -= numRead;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * Measures the CPU time and the bytes allocated by the threads of the
+ * process, except the threads of the RangeServer. The threads are sampled
+ * periodically, so threads which end between two samples are counted up
+ * to their last sample; the pools of the downloads keep their threads.
+ */
+public class ResourceSampler implements Runnable {
+	
+	private static final long SAMPLE_INTERVAL = 20;
+	
+	// Member variables
+	private com.sun.management.ThreadMXBean mThreadBean;
+	/** {cpu, allocated} of each thread when it was first seen */
+	private HashMap<Long, long[]> mStart;
+	/** {cpu, allocated} of each thread when it was last seen */
+	private HashMap<Long, long[]> mLast;
+	private Thread mThread;
+	private volatile boolean mIsRunning;
+	
+	public ResourceSampler() {
+		mThreadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		mThreadBean.setThreadCpuTimeEnabled(true);
+		mThreadBean.setThreadAllocatedMemoryEnabled(true);
+	}
+	
+	/**
+	 * Start measuring from now on
+	 */
+	public void start() {
+		mStart = new HashMap<Long, long[]>();
+		mLast = new HashMap<Long, long[]>();
+		sample(true);
+		mIsRunning = true;
+		mThread = new Thread(this, "ResourceSampler");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+	
+	/**
+	 * Stop measuring
+	 * @throws InterruptedException
+	 */
+	public void stop() throws InterruptedException {
+		mIsRunning = false;
+		mThread.join();
+		sample(false);
+	}
+	
+	/**
+	 * Get the CPU time used between start() and stop() (in nanoseconds)
+	 */
+	public long getCpuTime() {
+		return getDelta(0);
+	}
+	
+	/**
+	 * Get the bytes allocated between start() and stop()
+	 */
+	public long getAllocatedBytes() {
+		return getDelta(1);
+	}
+	
+	@Override
+	public void run() {
+		while (mIsRunning) {
+			sample(false);
+			try {
+				Thread.sleep(SAMPLE_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	private synchronized long getDelta(int index) {
+		long total = 0;
+		for (Long id : mLast.keySet())
+			total += mLast.get(id)[index] - mStart.get(id)[index];
+		return total;
+	}
+	
+	private synchronized void sample(boolean isStart) {
+		Thread[] threads = new Thread[Thread.activeCount() * 2 + 16];
+		int count = Thread.enumerate(threads);
+		for (int i=0; i<count; ++i) {
+			Thread aThread = threads[i];
+			if (aThread == mThread || aThread.getName().startsWith(RangeServer.THREAD_NAME)
+					|| aThread.getName().startsWith("HTTP-Dispatcher"))
+				continue;
+			
+			Long id = Long.valueOf(aThread.getId());
+			long cpu = mThreadBean.getThreadCpuTime(aThread.getId());
+			long allocated = mThreadBean.getThreadAllocatedBytes(aThread.getId());
+			if (cpu == -1 || allocated == -1)
+				continue;
+			
+			long[] values = new long[] {cpu, allocated};
+			// threads started after start() count from zero
+			if (!mStart.containsKey(id))
+				mStart.put(id, isStart ? values : new long[2]);
+			mLast.put(id, values);
+		}
+	}
+}
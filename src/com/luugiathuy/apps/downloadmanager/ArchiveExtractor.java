@@ -0,0 +1,548 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unpacks an archive while it is downloaded, reading the completed prefix
+ * of the file as it grows, so decompressing overlaps downloading instead of
+ * following it. gzip and zstd are decompressed, zstd by the decompressor
+ * registered for it or by zstd-jni if it is on the class path, and a tar
+ * file is extracted into the folder. A compressed file which is not a tar
+ * is written decompressed into the folder. Any other file is skipped, and
+ * so are the links in a tar.
+ * 
+ * The extraction fails if the download does, or if it downloads again
+ * bytes which were already extracted, e.g. after a checksum mismatch.
+ */
+public class ArchiveExtractor implements Runnable {
+	
+	/**
+	 * Decompressor of a compression format
+	 */
+	public interface Decompressor {
+		/**
+		 * Wrap a compressed stream
+		 * @param in the compressed stream, starting with the magic bytes
+		 * @return the decompressed stream
+		 * @throws IOException
+		 */
+		InputStream open(InputStream in) throws IOException;
+	}
+	
+	/** Size of the read buffers */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	/** Size of a tar header and block */
+	private static final int TAR_BLOCK_SIZE = 512;
+	
+	// Constants for the types of tar entries
+	private static final byte TAR_FILE = '0';
+	private static final byte TAR_OLD_FILE = 0;
+	private static final byte TAR_CONTIGUOUS_FILE = '7';
+	private static final byte TAR_DIRECTORY = '5';
+	private static final byte TAR_LONG_NAME = 'L';
+	private static final byte TAR_PAX_HEADER = 'x';
+	
+	/** The registered compression formats */
+	private static final ArrayList<Format> sFormats = new ArrayList<Format>();
+	
+	static {
+		registerDecompressor(new byte[] {(byte)0x1F, (byte)0x8B}, ".gz", new Decompressor() {
+			public InputStream open(InputStream in) throws IOException {
+				return new GZIPInputStream(in, BUFFER_SIZE);
+			}
+		});
+		registerDecompressor(new byte[] {(byte)0x28, (byte)0xB5, (byte)0x2F, (byte)0xFD}, ".zst", new Decompressor() {
+			public InputStream open(InputStream in) throws IOException {
+				return openZstd(in);
+			}
+		});
+	}
+	
+	// Member variables
+	private Downloader mDownloader;
+	private File mFolder;
+	private Thread mThread;
+	private volatile boolean mIsDone;
+	private volatile boolean mIsSkipped;
+	private volatile IOException mError;
+	private volatile int mFileCount;
+	private volatile long mExtractedSize;
+	
+	/**
+	 * Constructor
+	 * @param downloader the download of the archive
+	 * @param folder folder to extract into, created if it does not exist
+	 */
+	public ArchiveExtractor(Downloader downloader, File folder) {
+		mDownloader = downloader;
+		mFolder = folder.getAbsoluteFile();
+		mIsDone = false;
+		mIsSkipped = false;
+		mFileCount = 0;
+		mExtractedSize = 0;
+	}
+	
+	/**
+	 * Register the decompressor of a format, replacing the one registered
+	 * for the same magic bytes, e.g. a zstd decompressor
+	 * @param magic the bytes a compressed file starts with
+	 * @param extension the extension of compressed files, e.g. ".zst"
+	 * @param decompressor
+	 */
+	public static void registerDecompressor(byte[] magic, String extension, Decompressor decompressor) {
+		synchronized (sFormats) {
+			for (int i=0; i<sFormats.size(); ++i) {
+				if (Arrays.equals(sFormats.get(i).magic, magic))
+					sFormats.remove(i--);
+			}
+			Format format = new Format();
+			format.magic = magic.clone();
+			format.extension = extension;
+			format.decompressor = decompressor;
+			sFormats.add(format);
+		}
+	}
+	
+	/**
+	 * Start extracting on a thread of its own
+	 */
+	public void start() {
+		mThread = new Thread(this, "Extract-" + mDownloader.mFileName);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+	
+	/**
+	 * Wait until the extraction is over
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		if (mThread != null)
+			mThread.join();
+	}
+	
+	public Downloader getDownloader() {
+		return mDownloader;
+	}
+	
+	public File getFolder() {
+		return mFolder;
+	}
+	
+	/**
+	 * Get whether the extraction is over, successfully or not
+	 */
+	public boolean isDone() {
+		return mIsDone;
+	}
+	
+	/**
+	 * Get whether the file is not an archive, so nothing was extracted
+	 */
+	public boolean isSkipped() {
+		return mIsSkipped;
+	}
+	
+	/**
+	 * Get why the extraction failed, null if it did not
+	 */
+	public IOException getError() {
+		return mError;
+	}
+	
+	/**
+	 * Get the number of files extracted so far
+	 */
+	public int getFileCount() {
+		return mFileCount;
+	}
+	
+	/**
+	 * Get the size of the files extracted so far (in bytes)
+	 */
+	public long getExtractedSize() {
+		return mExtractedSize;
+	}
+	
+	@Override
+	public void run() {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(mDownloader.openCompletedStream(), BUFFER_SIZE);
+			Format format = detectFormat(in);
+			InputStream data = (format == null) ? in
+					: new BufferedInputStream(format.decompressor.open(in), BUFFER_SIZE);
+			boolean isTar = isTar(data);
+			if (format == null && !isTar) {
+				mIsSkipped = true;
+				System.out.println("Not an archive, not extracted: " + mDownloader.mFileName);
+				return;
+			}
+			
+			Files.createDirectories(mFolder.toPath());
+			if (isTar) {
+				extractTar(data);
+			} else {
+				String name = mDownloader.mFileName;
+				if (name.endsWith(format.extension))
+					name = name.substring(0, name.length() - format.extension.length());
+				writeFile(data, resolve(name), Long.MAX_VALUE);
+				++mFileCount;
+			}
+			
+			// read to the end, so the trailer of the compression is checked,
+			// then to the end of the file, which the download has verified
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (data.read(buffer) != -1);
+			while (in.read(buffer) != -1);
+			System.out.println("Extracted " + mDownloader.mFileName + ": " + mFileCount + " files");
+		} catch (IOException e) {
+			mError = e;
+			System.out.println("Cannot extract " + mDownloader.mFileName + ": " + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {}
+			}
+			mIsDone = true;
+		}
+	}
+	
+	/**
+	 * Find the compression format by the magic bytes the stream starts with
+	 * @param in a stream supporting mark
+	 * @return null if the stream is not compressed in a registered format
+	 */
+	private static Format detectFormat(InputStream in) throws IOException {
+		byte[] start = new byte[8];
+		in.mark(start.length);
+		int length = readUpTo(in, start, start.length);
+		in.reset();
+		
+		synchronized (sFormats) {
+			for (int i=0; i<sFormats.size(); ++i) {
+				byte[] magic = sFormats.get(i).magic;
+				if (magic.length <= length && Arrays.equals(magic, Arrays.copyOf(start, magic.length)))
+					return sFormats.get(i);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Open a zstd stream with zstd-jni, looked up at runtime so it is not
+	 * needed to build or run without zstd
+	 */
+	private static InputStream openZstd(InputStream in) throws IOException {
+		try {
+			Class<?> streamClass = Class.forName("com.github.luben.zstd.ZstdInputStream");
+			return (InputStream)streamClass.getConstructor(InputStream.class).newInstance(in);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("No zstd decompressor: add zstd-jni to the class path or register one");
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Cannot open the zstd decompressor", e);
+		} catch (LinkageError e) {
+			// e.g. no native library for the platform
+			throw new IOException("Cannot load the zstd decompressor", e);
+		}
+	}
+	
+	/**
+	 * Get whether the stream starts with a tar header, by its checksum
+	 * @param in a stream supporting mark
+	 */
+	private static boolean isTar(InputStream in) throws IOException {
+		byte[] header = new byte[TAR_BLOCK_SIZE];
+		in.mark(header.length);
+		int length = readUpTo(in, header, header.length);
+		in.reset();
+		return length == header.length && !isZeroBlock(header) && isValidHeader(header);
+	}
+	
+	/**
+	 * Extract the entries of a tar stream: files and directories, with the
+	 * long names of GNU and pax headers
+	 */
+	private void extractTar(InputStream in) throws IOException {
+		byte[] header = new byte[TAR_BLOCK_SIZE];
+		String longName = null;
+		long paxSize = -1;
+		while (true) {
+			readFully(in, header, header.length);
+			if (isZeroBlock(header))
+				break;
+			if (!isValidHeader(header))
+				throw new IOException("Invalid tar header");
+			
+			byte type = header[156];
+			long size = (paxSize != -1) ? paxSize : parseNumber(header, 124, 12);
+			String name = (longName != null) ? longName : getHeaderName(header);
+			if (type == TAR_LONG_NAME || type == TAR_PAX_HEADER) {
+				if (size > BUFFER_SIZE)
+					throw new IOException("Tar header too long: " + size);
+				byte[] data = new byte[(int)size];
+				readFully(in, data, data.length);
+				skip(in, getPadding(size));
+				if (type == TAR_LONG_NAME) {
+					longName = parseString(data, 0, data.length);
+				} else {
+					String path = getPaxValue(data, "path");
+					if (path != null)
+						longName = path;
+					String paxSizeValue = getPaxValue(data, "size");
+					if (paxSizeValue != null)
+						paxSize = Long.parseLong(paxSizeValue);
+				}
+				continue;
+			}
+			longName = null;
+			paxSize = -1;
+			
+			boolean isFile = type == TAR_FILE || type == TAR_OLD_FILE || type == TAR_CONTIGUOUS_FILE;
+			if (type == TAR_DIRECTORY || (isFile && name.endsWith("/"))) {
+				Files.createDirectories(resolve(name).toPath());
+			} else if (isFile) {
+				File target = resolve(name);
+				Files.createDirectories(target.getParentFile().toPath());
+				writeFile(in, target, size);
+				// keep the executables executable
+				if ((parseNumber(header, 100, 8) & 0111) != 0)
+					target.setExecutable(true, false);
+				++mFileCount;
+			} else {
+				// links, devices and the extension headers of other tars
+				System.out.println("Skip tar entry " + name + " of type " + (char)type);
+				skip(in, size);
+			}
+			skip(in, getPadding(size));
+		}
+	}
+	
+	/**
+	 * Get the file an entry is extracted to
+	 * @throws IOException if it is outside the folder, e.g. ../name
+	 */
+	private File resolve(String name) throws IOException {
+		Path folder = mFolder.toPath().normalize();
+		Path target = folder.resolve(name).normalize();
+		if (!target.startsWith(folder))
+			throw new IOException("Entry outside the folder: " + name);
+		return target.toFile();
+	}
+	
+	/**
+	 * Write the next bytes of the stream to a file, replacing it
+	 * @param size the number of bytes, Long.MAX_VALUE for all remaining
+	 */
+	private void writeFile(InputStream in, File file, long size) throws IOException {
+		Files.deleteIfExists(file.toPath());
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (size > 0) {
+				int numRead = in.read(buffer, 0, (int)Math.min(buffer.length, size));
+				if (numRead == -1) {
+					if (size == Long.MAX_VALUE)
+						break;
+					throw new EOFException("Unexpected end of the archive");
+				}
+				out.write(buffer, 0, numRead);
+				mExtractedSize += numRead;
+				if (size != Long.MAX_VALUE)
+					size -= numRead;
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Get the name of a tar header, with the prefix of a ustar header
+	 */
+	private static String getHeaderName(byte[] header) {
+		String name = parseString(header, 0, 100);
+		if (parseString(header, 257, 5).equals("ustar")) {
+			String prefix = parseString(header, 345, 155);
+			if (prefix.length() > 0)
+				name = prefix + "/" + name;
+		}
+		return name;
+	}
+	
+	/**
+	 * Get a value of the records of a pax header, "length key=value\n" each
+	 * @return null if the key is not there
+	 */
+	private static String getPaxValue(byte[] data, String key) throws IOException {
+		int position = 0;
+		while (position < data.length) {
+			int space = position;
+			while (space < data.length && data[space] != ' ')
+				++space;
+			int length;
+			try {
+				length = Integer.parseInt(new String(data, position, space - position, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid pax header");
+			}
+			if (length <= space - position || position + length > data.length)
+				throw new IOException("Invalid pax header");
+			
+			String record = new String(data, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+			if (record.startsWith(key + "="))
+				return record.substring(key.length() + 1);
+			position += length;
+		}
+		return null;
+	}
+	
+	/**
+	 * Check the checksum of a tar header: the sum of its bytes, with the
+	 * checksum field counted as spaces
+	 */
+	private static boolean isValidHeader(byte[] header) {
+		long sum = 0;
+		for (int i=0; i<header.length; ++i)
+			sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xFF);
+		try {
+			return parseNumber(header, 148, 8) == sum;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	private static boolean isZeroBlock(byte[] block) {
+		for (int i=0; i<block.length; ++i) {
+			if (block[i] != 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Parse a number field of a tar header, in octal or, if its first bit
+	 * is set, in base 256 as GNU tar writes large sizes
+	 */
+	private static long parseNumber(byte[] header, int offset, int length) throws IOException {
+		long value = 0;
+		if ((header[offset] & 0x80) != 0) {
+			value = header[offset] & 0x7F;
+			for (int i=1; i<length; ++i)
+				value = (value << 8) | (header[offset + i] & 0xFF);
+			return value;
+		}
+		
+		int i = 0;
+		while (i < length && (header[offset + i] == ' ' || header[offset + i] == 0))
+			++i;
+		for (; i < length && header[offset + i] != ' ' && header[offset + i] != 0; ++i) {
+			int digit = header[offset + i] - '0';
+			if (digit < 0 || digit > 7)
+				throw new IOException("Invalid number in tar header");
+			value = (value << 3) | digit;
+		}
+		return value;
+	}
+	
+	/**
+	 * Parse a string field of a tar header, which ends at its first NUL
+	 */
+	private static String parseString(byte[] header, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && header[end] != 0)
+			++end;
+		return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Get the number of bytes padding an entry of the given size to a whole block
+	 */
+	private static long getPadding(long size) {
+		return (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+	}
+	
+	/**
+	 * Read as many bytes as the stream has up to the given length
+	 * @return the number of bytes read
+	 */
+	private static int readUpTo(InputStream in, byte[] b, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int numRead = in.read(b, total, length - total);
+			if (numRead == -1)
+				break;
+			total += numRead;
+		}
+		return total;
+	}
+	
+	private static void readFully(InputStream in, byte[] b, int length) throws IOException {
+		if (readUpTo(in, b, length) != length)
+			throw new EOFException("Unexpected end of the archive");
+	}
+	
+	private static void skip(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long numSkipped = in.skip(count);
+			if (numSkipped <= 0) {
+				if (in.read() == -1)
+					throw new EOFException("Unexpected end of the archive");
+				numSkipped = 1;
+			}
+			count -= numSkipped;
+		}
+	}
+	
+	/**
+	 * A compression format registered with its decompressor
+	 */
+	private static class Format {
+		byte[] magic;
+		String extension;
+		Decompressor decompressor;
+	}
+}
@@ -0,0 +1,86 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pool of direct buffers used by the download threads to move data from the
+ * connection to the output file. Direct buffers are written to the file
+ * without another copy, but are expensive to allocate, so they are reused.
+ */
+public class BufferPool {
+	
+	// Member variables
+	private ConcurrentLinkedQueue<ByteBuffer> mBuffers;
+	private volatile int mBufferSize;
+	
+	/**
+	 * Constructor
+	 * @param bufferSize size of each buffer (in bytes)
+	 */
+	public BufferPool(int bufferSize) {
+		mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		mBufferSize = bufferSize;
+	}
+	
+	/**
+	 * Get the size of the buffers (in bytes)
+	 */
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+	
+	/**
+	 * Set the size of the buffers (in bytes). Buffers of the old size are
+	 * dropped when they are released.
+	 */
+	public void setBufferSize(int value) {
+		mBufferSize = value;
+		mBuffers.clear();
+	}
+	
+	/**
+	 * Take a cleared buffer from the pool, or allocate one if it is empty
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = mBuffers.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(mBufferSize);
+		
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Give a buffer back to the pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == mBufferSize)
+			mBuffers.offer(buffer);
+	}
+}
@@ -0,0 +1,192 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * List of the hashes of the fixed-size blocks of a file, the leaves of its
+ * Merkle tree. The file format is a line with the algorithm and block size,
+ * followed by the hash of each block in hex, one per line.
+ */
+public class ChunkManifest {
+	
+	/** Extension of the manifest kept next to an unfinished download */
+	public static final String EXTENSION = ".chunks";
+	
+	// Member variables
+	private String mAlgorithm;
+	private int mBlockSize;
+	private List<String> mHashes;
+	
+	/**
+	 * Constructor
+	 * @param algorithm MessageDigest algorithm, e.g. SHA-256
+	 * @param blockSize size of each block, the last one may be shorter
+	 * @param hashes hash of each block in hex
+	 * @throws IllegalArgumentException if the algorithm is not supported
+	 */
+	public ChunkManifest(String algorithm, int blockSize, List<String> hashes) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		
+		mAlgorithm = algorithm;
+		mBlockSize = blockSize;
+		mHashes = new ArrayList<String>(hashes.size());
+		for (int i=0; i<hashes.size(); ++i)
+			mHashes.add(hashes.get(i).toLowerCase());
+		
+		// fail now rather than when the first block is written
+		newDigest();
+	}
+	
+	public String getAlgorithm() {
+		return mAlgorithm;
+	}
+	
+	public int getBlockSize() {
+		return mBlockSize;
+	}
+	
+	public int getBlockCount() {
+		return mHashes.size();
+	}
+	
+	/**
+	 * Get the expected hash of a block in hex
+	 */
+	public String getHash(int block) {
+		return mHashes.get(block);
+	}
+	
+	/**
+	 * Create a digest computing the hashes of this manifest
+	 */
+	public MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(mAlgorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unsupported hash algorithm: " + mAlgorithm);
+		}
+	}
+	
+	/**
+	 * Get the root of the Merkle tree over the block hashes, where each node
+	 * is the hash of its two children (a single child is promoted as is).
+	 * A manifest from an untrusted source can be checked against a trusted root.
+	 * @return the root hash in hex
+	 */
+	public String getRootHash() {
+		MessageDigest digest = newDigest();
+		List<byte[]> level = new ArrayList<byte[]>(mHashes.size());
+		for (int i=0; i<mHashes.size(); ++i)
+			level.add(fromHex(mHashes.get(i)));
+		
+		while (level.size() > 1) {
+			List<byte[]> parents = new ArrayList<byte[]>((level.size() + 1) / 2);
+			for (int i=0; i<level.size(); i += 2) {
+				if (i + 1 == level.size()) {
+					parents.add(level.get(i));
+				} else {
+					digest.update(level.get(i));
+					digest.update(level.get(i + 1));
+					parents.add(digest.digest());
+				}
+			}
+			level = parents;
+		}
+		
+		return level.isEmpty() ? "" : IntegrityCheck.toHex(level.get(0));
+	}
+	
+	/**
+	 * Check that the manifest matches the size of the file
+	 */
+	public boolean isValidFor(long fileSize) {
+		return (fileSize + mBlockSize - 1) / mBlockSize == mHashes.size();
+	}
+	
+	/**
+	 * Read a manifest file
+	 * @throws IOException if the file cannot be read or is not a valid manifest
+	 */
+	public static ChunkManifest read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String header = in.readLine();
+			String[] fields = (header == null) ? new String[0] : header.trim().split("\\s+");
+			if (fields.length != 2)
+				throw new IOException("Invalid manifest header: " + file);
+			
+			ArrayList<String> hashes = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0)
+					hashes.add(line);
+			}
+			
+			return new ChunkManifest(fields[0], Integer.parseInt(fields[1]), hashes);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid manifest " + file + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Write the manifest to a file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println(mAlgorithm + " " + mBlockSize);
+			for (int i=0; i<mHashes.size(); ++i)
+				out.println(mHashes.get(i));
+			if (out.checkError())
+				throw new IOException("Cannot write manifest: " + file);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i=0; i<bytes.length; ++i)
+			bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		return bytes;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Verifies the blocks of a ChunkManifest as soon as all their bytes are
+ * written, whichever segments wrote them. A corrupt block is downloaded
+ * again as a new segment instead of the whole file.
+ */
+class ChunkVerifier {
+	
+	/** Number of times a block may fail before the download is in error */
+	public static final int MAX_ATTEMPTS = 3;
+	
+	// Member variables
+	private Downloader mDownloader;
+	private ChunkManifest mManifest;
+	private int mBlockSize;
+	private long mFileSize;
+	/** Bytes written to each block since it was last verified or reset */
+	private AtomicIntegerArray mWritten;
+	private AtomicIntegerArray mFailures;
+	
+	/**
+	 * Constructor
+	 * @param downloader
+	 * @param manifest must be valid for the size of the file
+	 */
+	public ChunkVerifier(Downloader downloader, ChunkManifest manifest) {
+		mDownloader = downloader;
+		mManifest = manifest;
+		mBlockSize = manifest.getBlockSize();
+		mFileSize = downloader.mFileSize;
+		mWritten = new AtomicIntegerArray(manifest.getBlockCount());
+		mFailures = new AtomicIntegerArray(manifest.getBlockCount());
+	}
+	
+	/**
+	 * Count a range written before, e.g. restored from the journal, without
+	 * verifying the blocks it completes
+	 * @param startByte
+	 * @param endByte inclusive
+	 */
+	public void credit(long startByte, long endByte) {
+		for (long position = startByte; position <= endByte; ) {
+			int block = (int)(position / mBlockSize);
+			long blockEnd = Math.min((long)(block + 1) * mBlockSize, endByte + 1);
+			mWritten.addAndGet(block, (int)(blockEnd - position));
+			position = blockEnd;
+		}
+	}
+	
+	/**
+	 * Count the bytes just written and verify the blocks they complete
+	 * @param position of the first byte written
+	 * @param length
+	 * @throws IOException if a block cannot be read back
+	 */
+	public void written(long position, int length) throws IOException {
+		long endByte = position + length;
+		while (position < endByte) {
+			int block = (int)(position / mBlockSize);
+			long blockEnd = Math.min((long)(block + 1) * mBlockSize, endByte);
+			// only the thread writing the last bytes of a block sees it complete
+			if (mWritten.addAndGet(block, (int)(blockEnd - position)) == getBlockLength(block))
+				verifyBlock(block);
+			position = blockEnd;
+		}
+	}
+	
+	private int getBlockLength(int block) {
+		return (int)Math.min(mBlockSize, mFileSize - (long)block * mBlockSize);
+	}
+	
+	/**
+	 * Read the block back from the output file and compare its hash, which
+	 * is likely to be served from the page cache as it was just written
+	 * @throws IOException
+	 */
+	private void verifyBlock(int block) throws IOException {
+		long startByte = (long)block * mBlockSize;
+		long endByte = startByte + getBlockLength(block);
+		MessageDigest digest = mManifest.newDigest();
+		ByteBuffer buffer = mDownloader.mBufferPool.acquire();
+		try {
+			for (long position = startByte; position < endByte; ) {
+				buffer.clear();
+				if (buffer.capacity() > endByte - position)
+					buffer.limit((int)(endByte - position));
+				int numRead = mDownloader.mOutputChannel.read(buffer, position);
+				if (numRead == -1)
+					throw new IOException("Unexpected end of file at " + position);
+				buffer.flip();
+				digest.update(buffer);
+				position += numRead;
+			}
+		} finally {
+			mDownloader.mBufferPool.release(buffer);
+		}
+		
+		if (IntegrityCheck.toHex(digest.digest()).equals(mManifest.getHash(block)))
+			return;
+		
+		System.out.println("Corrupt block " + block + ": bytes " + startByte + "-" + (endByte - 1));
+		if (mFailures.incrementAndGet(block) >= MAX_ATTEMPTS) {
+			// the manifest does not match what the server sends
+			mDownloader.setState(Downloader.ERROR);
+			return;
+		}
+		
+		mWritten.set(block, 0);
+		mDownloader.refetch(startByte, endByte - 1);
+	}
+}
@@ -0,0 +1,135 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.net.URL;
+import java.util.HashMap;
+
+/**
+ * Stops requests to a host after a number of consecutive failures, shared
+ * by all downloads. Once the circuit of a host has been open for a while,
+ * a single trial request is let through: if it succeeds the circuit is
+ * closed again, otherwise it stays open twice as long.
+ */
+public class CircuitBreaker {
+	
+	/** Number of consecutive failures which open the circuit of a host */
+	public static final int FAILURE_THRESHOLD = 5;
+	
+	/** Time the circuit stays open after it first opens (in nanoseconds) */
+	private static final long OPEN_TIME = 10000000000L;
+	
+	/** Max. time the circuit stays open (in nanoseconds) */
+	private static final long MAX_OPEN_TIME = 300000000000L;
+	
+	/** Time after which a trial request is given up on (in nanoseconds) */
+	private static final long TRIAL_TIMEOUT = 60000000000L;
+	
+	/** Time the other requests wait while a trial request runs (in nanoseconds) */
+	private static final long TRIAL_WAIT = 1000000000L;
+	
+	// Member variables
+	private HashMap<String, Circuit> mCircuits;
+	
+	public CircuitBreaker() {
+		mCircuits = new HashMap<String, Circuit>();
+	}
+	
+	/**
+	 * Get how long to wait before requesting from the host of the url. When
+	 * 0 is returned for an open circuit, the caller makes the trial request.
+	 * @return the time to wait (in nanoseconds), 0 to request now
+	 */
+	public synchronized long getWaitTime(URL url) {
+		Circuit circuit = mCircuits.get(ConnectionPool.getHostKey(url));
+		if (circuit == null || circuit.mOpenUntil == 0)
+			return 0;
+		
+		long now = System.nanoTime();
+		if (now < circuit.mOpenUntil)
+			return circuit.mOpenUntil - now;
+		
+		if (circuit.mTrialStart != 0 && now - circuit.mTrialStart < TRIAL_TIMEOUT)
+			return TRIAL_WAIT;
+		
+		circuit.mTrialStart = now;
+		return 0;
+	}
+	
+	/**
+	 * Record a successful request, which closes the circuit of the host
+	 */
+	public synchronized void success(URL url) {
+		Circuit circuit = mCircuits.remove(ConnectionPool.getHostKey(url));
+		if (circuit != null && circuit.mOpenUntil != 0)
+			System.out.println("Circuit closed: " + url.getHost());
+	}
+	
+	/**
+	 * Record a failed request, which may open the circuit of the host
+	 */
+	public synchronized void failure(URL url) {
+		String host = ConnectionPool.getHostKey(url);
+		Circuit circuit = mCircuits.get(host);
+		if (circuit == null) {
+			circuit = new Circuit();
+			mCircuits.put(host, circuit);
+		}
+		
+		++circuit.mFailures;
+		long now = System.nanoTime();
+		if (circuit.mTrialStart != 0) {
+			// the trial failed, stay open for longer
+			circuit.mTrialStart = 0;
+			circuit.mOpenTime = Math.min(circuit.mOpenTime * 2, MAX_OPEN_TIME);
+			circuit.mOpenUntil = now + circuit.mOpenTime;
+		} else if (circuit.mOpenUntil == 0 && circuit.mFailures >= FAILURE_THRESHOLD) {
+			circuit.mOpenTime = OPEN_TIME;
+			circuit.mOpenUntil = now + circuit.mOpenTime;
+			System.out.println("Circuit opened: " + url.getHost());
+		}
+	}
+	
+	/**
+	 * Get whether requests to the host of the url are stopped
+	 */
+	public synchronized boolean isOpen(URL url) {
+		Circuit circuit = mCircuits.get(ConnectionPool.getHostKey(url));
+		return circuit != null && circuit.mOpenUntil != 0;
+	}
+	
+	/**
+	 * Failures of one host
+	 */
+	private static class Circuit {
+		private int mFailures;
+		/** Time until which no request is made, 0 if the circuit is closed */
+		private long mOpenUntil;
+		private long mOpenTime;
+		/** Start of the running trial request, 0 if there is none */
+		private long mTrialStart;
+	}
+}
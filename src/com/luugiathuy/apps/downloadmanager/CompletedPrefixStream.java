@@ -0,0 +1,129 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the output file of a download while it is downloaded. A read
+ * returns the bytes of the completed prefix of the file and waits while
+ * there are none, until the download is completed; its last bytes are
+ * only returned once the file is verified. The file is opened at the first
+ * byte read, after a fresh download has replaced it.
+ */
+class CompletedPrefixStream extends InputStream {
+	
+	/** Interval of checking for more bytes (in milliseconds) */
+	private static final int POLL_INTERVAL = 20;
+	
+	// Member variables
+	private Downloader mDownloader;
+	private String mFile;
+	private FileChannel mChannel;
+	private long mPosition;
+	
+	/**
+	 * Constructor
+	 * @param downloader
+	 * @param file the output file of the download
+	 */
+	public CompletedPrefixStream(Downloader downloader, String file) {
+		mDownloader = downloader;
+		mFile = file;
+		mPosition = 0;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int numRead = read(b, 0, 1);
+		return (numRead == -1) ? -1 : (b[0] & 0xFF);
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		
+		long available = waitForBytes();
+		if (available == -1)
+			return -1;
+		
+		if (mChannel == null)
+			mChannel = FileChannel.open(Paths.get(mFile), StandardOpenOption.READ);
+		int numRead = mChannel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, available)), mPosition);
+		if (numRead == -1)
+			throw new IOException("Unexpected end of file at " + mPosition);
+		mPosition += numRead;
+		return numRead;
+	}
+	
+	@Override
+	public int available() {
+		return (int)Math.min(Integer.MAX_VALUE, Math.max(mDownloader.getCompletedPrefix() - mPosition, 0));
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (mChannel != null)
+			mChannel.close();
+	}
+	
+	/**
+	 * Wait until the completed prefix is longer than what was read
+	 * @return the number of bytes which can be read, -1 at the end of the file
+	 * @throws IOException if the download fails or is cancelled, or if it
+	 * downloads again bytes which were read already
+	 */
+	private long waitForBytes() throws IOException {
+		while (true) {
+			// the state first, so a completed download has its whole prefix
+			int state = mDownloader.getState();
+			long prefix = mDownloader.getCompletedPrefix();
+			if (prefix > mPosition)
+				return prefix - mPosition;
+			if (state == Downloader.COMPLETED)
+				return -1;
+			if (state == Downloader.ERROR || state == Downloader.CANCELLED)
+				throw new IOException("Download " + Downloader.STATUSES[state].toLowerCase());
+			if (prefix < mPosition)
+				throw new IOException("The bytes read from " + prefix + " are downloaded again");
+			
+			// paused or queued downloads continue the same file
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL));
+			if (Thread.interrupted())
+				throw new InterruptedIOException("Interrupted while waiting for " + mFile);
+		}
+	}
+}
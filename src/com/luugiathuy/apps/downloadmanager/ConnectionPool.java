@@ -0,0 +1,502 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Threads and connection limits shared by all downloads. Segments run on a
+ * pool with one thread per allowed connection, and a segment is only
+ * started once a connection to its host is available. Waiting schedulers
+ * are woken up when a connection is released.
+ * 
+ * Downloads wait in a queue, without a thread, until fewer than the max.
+ * number of downloads are active. They are admitted by priority, and in the
+ * order they were queued within a priority.
+ * 
+ * Optionally every download and segment gets its own virtual thread. The
+ * connection limits stay the same, so only the cost of the threads blocked
+ * in socket reads goes away.
+ */
+public class ConnectionPool {
+	
+	// Member variables
+	private int mMaxConnections;
+	private int mMaxConnectionsPerHost;
+	private int mMaxActiveDownloads;
+	private int mConnections;
+	private int mActiveDownloads;
+	private HashMap<String, Integer> mHostConnections;
+	private LinkedHashSet<SegmentScheduler> mWaiting;
+	private PriorityQueue<QueuedDownload> mQueue;
+	/** Sequence of the next download queued at the back, and at the front */
+	private long mLastSequence;
+	private long mFirstSequence;
+	private ReentrantLock mDownloadLock;
+	private volatile ExecutorService mSegmentExecutor;
+	private volatile ExecutorService mDownloadExecutor;
+	/** Closes the connections of stopped segments */
+	private ExecutorService mCloseExecutor;
+	private boolean mUseVirtualThreads;
+	
+	/**
+	 * Constructor
+	 * @param maxConnections max. number of connections of all downloads
+	 * @param maxConnectionsPerHost max. number of connections to one host
+	 * @param maxActiveDownloads max. number of downloads running at the same time
+	 */
+	public ConnectionPool(int maxConnections, int maxConnectionsPerHost, int maxActiveDownloads) {
+		mMaxConnections = maxConnections;
+		mMaxActiveDownloads = maxActiveDownloads;
+		mConnections = 0;
+		mActiveDownloads = 0;
+		mHostConnections = new HashMap<String, Integer>();
+		mWaiting = new LinkedHashSet<SegmentScheduler>();
+		mQueue = new PriorityQueue<QueuedDownload>(11, new Comparator<QueuedDownload>() {
+			public int compare(QueuedDownload a, QueuedDownload b) {
+				if (a.mPriority != b.mPriority)
+					return (a.mPriority > b.mPriority) ? -1 : 1;
+				return Long.compare(a.mSequence, b.mSequence);
+			}
+		});
+		mLastSequence = 0;
+		mFirstSequence = -1;
+		mDownloadLock = new ReentrantLock();
+		mUseVirtualThreads = false;
+		
+		mSegmentExecutor = newSegmentPool(maxConnections);
+		mDownloadExecutor = Executors.newCachedThreadPool(newThreadFactory("Download"));
+		mCloseExecutor = Executors.newCachedThreadPool(newThreadFactory("Close"));
+		
+		setMaxConnectionsPerHost(maxConnectionsPerHost);
+	}
+	
+	/**
+	 * Create the pool of the segments, with a thread for each connection and
+	 * one for the transfer it may run on another thread
+	 */
+	private static ThreadPoolExecutor newSegmentPool(int maxConnections) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(2 * maxConnections, 2 * maxConnections,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), newThreadFactory("Segment"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Create an executor starting a virtual thread for each task
+	 * @return the executor, null if the JVM does not support virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		} catch (Exception e) {
+			// before Java 21, or preview features not enabled
+			return null;
+		}
+	}
+	
+	/**
+	 * Get whether the JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (executor == null)
+			return false;
+		
+		executor.shutdown();
+		return true;
+	}
+	
+	public synchronized boolean isUseVirtualThreads() {
+		return mUseVirtualThreads;
+	}
+	
+	/**
+	 * Run new downloads and segments on virtual threads, or back on the
+	 * thread pools. Running ones finish on their current threads. Tasks are
+	 * submitted under the pool's lock so none goes to a shut down executor.
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public synchronized void setUseVirtualThreads(boolean value) {
+		if (value == mUseVirtualThreads)
+			return;
+		
+		ExecutorService oldSegmentExecutor = mSegmentExecutor;
+		ExecutorService oldDownloadExecutor = mDownloadExecutor;
+		if (value) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor == null)
+				throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+			
+			mSegmentExecutor = executor;
+			mDownloadExecutor = executor;
+		} else {
+			mSegmentExecutor = newSegmentPool(mMaxConnections);
+			mDownloadExecutor = Executors.newCachedThreadPool(newThreadFactory("Download"));
+		}
+		mUseVirtualThreads = value;
+		
+		// let the running tasks finish, no new ones are accepted
+		oldSegmentExecutor.shutdown();
+		oldDownloadExecutor.shutdown();
+	}
+	
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+			
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + mCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	public synchronized int getMaxConnections() {
+		return mMaxConnections;
+	}
+	
+	public void setMaxConnections(int value) {
+		synchronized (this) {
+			mMaxConnections = value;
+			if (mSegmentExecutor instanceof ThreadPoolExecutor) {
+				ThreadPoolExecutor pool = (ThreadPoolExecutor)mSegmentExecutor;
+				if (2 * value > pool.getMaximumPoolSize()) {
+					pool.setMaximumPoolSize(2 * value);
+					pool.setCorePoolSize(2 * value);
+				} else {
+					pool.setCorePoolSize(2 * value);
+					pool.setMaximumPoolSize(2 * value);
+				}
+			}
+		}
+		wakeUpWaiting();
+	}
+	
+	public synchronized int getMaxConnectionsPerHost() {
+		return mMaxConnectionsPerHost;
+	}
+	
+	public void setMaxConnectionsPerHost(int value) {
+		synchronized (this) {
+			mMaxConnectionsPerHost = value;
+			// keep as many idle keep-alive connections per host as may be used
+			System.setProperty("http.maxConnections", Integer.toString(value));
+		}
+		wakeUpWaiting();
+	}
+	
+	/**
+	 * Get the number of connections a download from the given urls can hold
+	 * at most: the per-host limit for each of their hosts, within the limit
+	 * of all downloads
+	 */
+	public synchronized int getMaxConnections(List<URL> urls) {
+		HashSet<String> hosts = new HashSet<String>();
+		for (int i=0; i<urls.size(); ++i)
+			hosts.add(getHostKey(urls.get(i)));
+		return Math.min(mMaxConnections, mMaxConnectionsPerHost * hosts.size());
+	}
+	
+	public int getMaxActiveDownloads() {
+		mDownloadLock.lock();
+		try {
+			return mMaxActiveDownloads;
+		} finally {
+			mDownloadLock.unlock();
+		}
+	}
+	
+	public void setMaxActiveDownloads(int value) {
+		mDownloadLock.lock();
+		try {
+			mMaxActiveDownloads = value;
+			admitDownloads();
+		} finally {
+			mDownloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Queue a download behind the others of its priority. It is run once
+	 * fewer than the max. number of downloads are active, if it is still in
+	 * QUEUED state then.
+	 */
+	public void startDownload(Downloader download) {
+		mDownloadLock.lock();
+		try {
+			removeQueued(download);
+			mQueue.add(new QueuedDownload(download, download.getPriority(), mLastSequence++));
+			admitDownloads();
+		} finally {
+			mDownloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Move a queued download behind the others of its new priority
+	 * @return false if the download is not queued
+	 */
+	public boolean requeue(Downloader download) {
+		mDownloadLock.lock();
+		try {
+			if (!removeQueued(download))
+				return false;
+			
+			mQueue.add(new QueuedDownload(download, download.getPriority(), mLastSequence++));
+			return true;
+		} finally {
+			mDownloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Move a queued download before the others of its priority
+	 * @return false if the download is not queued
+	 */
+	public boolean moveToFront(Downloader download) {
+		mDownloadLock.lock();
+		try {
+			if (!removeQueued(download))
+				return false;
+			
+			mQueue.add(new QueuedDownload(download, download.getPriority(), mFirstSequence--));
+			return true;
+		} finally {
+			mDownloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Get the queued downloads in the order they will be admitted
+	 */
+	public ArrayList<Downloader> getQueuedDownloads() {
+		mDownloadLock.lock();
+		try {
+			PriorityQueue<QueuedDownload> queue = new PriorityQueue<QueuedDownload>(mQueue);
+			ArrayList<Downloader> downloads = new ArrayList<Downloader>(queue.size());
+			while (!queue.isEmpty()) {
+				Downloader download = queue.poll().mDownload;
+				// paused or cancelled while queued, dropped when it would be admitted
+				if (download.getState() == Downloader.QUEUED)
+					downloads.add(download);
+			}
+			return downloads;
+		} finally {
+			mDownloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Close a connection on another thread. Closing the response of a
+	 * connection waits for a read in progress on it, and the caller, e.g.
+	 * the user interface pausing a download, should not.
+	 */
+	public void closeLater(final Closeable connection) {
+		mCloseExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					connection.close();
+				} catch (IOException e) {}
+			}
+		});
+	}
+	
+	/**
+	 * Run the transfer of a running segment on another thread of the pool
+	 */
+	public synchronized void startTransfer(Runnable transfer) {
+		mSegmentExecutor.execute(transfer);
+	}
+	
+	/**
+	 * Run a segment, which must hold a connection from tryAcquire()
+	 */
+	public synchronized void startSegment(Runnable segment) {
+		mSegmentExecutor.execute(segment);
+	}
+	
+	/**
+	 * Take a connection to the host of the url, if one is available. If not,
+	 * the scheduler is woken up when a connection is released.
+	 * @return true if the connection is acquired
+	 */
+	public boolean tryAcquire(URL url, SegmentScheduler scheduler) {
+		String host = getHostKey(url);
+		synchronized (this) {
+			int hostConnections = getHostConnections(host);
+			if (mConnections < mMaxConnections && hostConnections < mMaxConnectionsPerHost) {
+				++mConnections;
+				mHostConnections.put(host, Integer.valueOf(hostConnections + 1));
+				mWaiting.remove(scheduler);
+				return true;
+			}
+			
+			mWaiting.add(scheduler);
+			return false;
+		}
+	}
+	
+	/**
+	 * Give back a connection taken by tryAcquire()
+	 */
+	public void release(URL url) {
+		String host = getHostKey(url);
+		synchronized (this) {
+			--mConnections;
+			int hostConnections = getHostConnections(host) - 1;
+			if (hostConnections == 0)
+				mHostConnections.remove(host);
+			else
+				mHostConnections.put(host, Integer.valueOf(hostConnections));
+		}
+		wakeUpWaiting();
+	}
+	
+	/**
+	 * Stop waking up a scheduler, e.g. when its download stopped
+	 */
+	public synchronized void cancelWaiting(SegmentScheduler scheduler) {
+		mWaiting.remove(scheduler);
+	}
+	
+	private boolean removeQueued(Downloader download) {
+		Iterator<QueuedDownload> it = mQueue.iterator();
+		while (it.hasNext()) {
+			if (it.next().mDownload == download) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Run the first queued downloads while fewer than the max. number are
+	 * active. Downloads paused or cancelled while queued are dropped.
+	 * Must be called with the download lock held.
+	 */
+	private void admitDownloads() {
+		while (mActiveDownloads < mMaxActiveDownloads && !mQueue.isEmpty()) {
+			final Downloader download = mQueue.poll().mDownload;
+			if (download.getState() != Downloader.QUEUED)
+				continue;
+			
+			++mActiveDownloads;
+			synchronized (this) {
+				mDownloadExecutor.execute(new Runnable() {
+					public void run() {
+						try {
+							download.runQueued();
+						} finally {
+							releaseDownload();
+						}
+					}
+				});
+			}
+		}
+	}
+	
+	private void releaseDownload() {
+		mDownloadLock.lock();
+		try {
+			--mActiveDownloads;
+			admitDownloads();
+		} finally {
+			mDownloadLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wake up the waiting schedulers. This is done on another thread since
+	 * the caller may hold a scheduler's lock, and the schedulers call back
+	 * into the pool while holding theirs.
+	 */
+	private void wakeUpWaiting() {
+		final ArrayList<SegmentScheduler> waiting;
+		synchronized (this) {
+			if (mWaiting.isEmpty())
+				return;
+			waiting = new ArrayList<SegmentScheduler>(mWaiting);
+			mWaiting.clear();
+		}
+		
+		synchronized (this) {
+			mDownloadExecutor.execute(new Runnable() {
+				public void run() {
+					for (int i=0; i<waiting.size(); ++i)
+						waiting.get(i).connectionAvailable();
+				}
+			});
+		}
+	}
+	
+	private int getHostConnections(String host) {
+		Integer count = mHostConnections.get(host);
+		return (count == null) ? 0 : count.intValue();
+	}
+	
+	/**
+	 * Position of a download in the queue
+	 */
+	private static class QueuedDownload {
+		private Downloader mDownload;
+		private int mPriority;
+		private long mSequence;
+		
+		public QueuedDownload(Downloader download, int priority, long sequence) {
+			mDownload = download;
+			mPriority = priority;
+			mSequence = sequence;
+		}
+	}
+	
+	static String getHostKey(URL url) {
+		int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+		return url.getHost().toLowerCase() + ":" + port;
+	}
+}
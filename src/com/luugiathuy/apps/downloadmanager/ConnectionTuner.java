@@ -0,0 +1,119 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+/**
+ * Finds the number of connections giving a download its best speed. After
+ * each measurement the count is moved one step further in the direction
+ * that helped; when a step does not improve the speed by at least
+ * MIN_GAIN, the tuner goes back to the best count, stays there for a few
+ * measurements and then probes in the other direction.
+ */
+public class ConnectionTuner {
+	
+	/** Relative improvement needed to keep a step */
+	private static final double MIN_GAIN = 0.05;
+	
+	/** Number of measurements to stay at the best count after a failed probe */
+	private static final int HOLD_MEASUREMENTS = 4;
+	
+	// Member variables
+	private int mMinConnections;
+	private int mMaxConnections;
+	private int mConnections;
+	private int mBestConnections;
+	private double mBestRate;
+	private int mStep;
+	private int mHold;
+	
+	/**
+	 * Constructor
+	 * @param connections the number of connections to start with
+	 * @param minConnections
+	 * @param maxConnections
+	 */
+	public ConnectionTuner(int connections, int minConnections, int maxConnections) {
+		mMinConnections = minConnections;
+		mMaxConnections = Math.max(minConnections, maxConnections);
+		mConnections = clamp(connections);
+		mBestConnections = mConnections;
+		mBestRate = 0;
+		mStep = 1;
+		mHold = 0;
+	}
+	
+	/**
+	 * Get the number of connections to use now
+	 */
+	public int getConnections() {
+		return mConnections;
+	}
+	
+	/**
+	 * Get the number of connections with the best measured speed
+	 */
+	public int getBestConnections() {
+		return mBestConnections;
+	}
+	
+	/**
+	 * Take the speed measured with getConnections() connections
+	 * @param rate bytes per second
+	 * @return the number of connections to use next
+	 */
+	public int update(double rate) {
+		if (mConnections != mBestConnections) {
+			if (rate > mBestRate * (1 + MIN_GAIN)) {
+				// the step helped, try one more in the same direction
+				mBestConnections = mConnections;
+				mBestRate = rate;
+				mConnections = clamp(mConnections + mStep);
+			} else {
+				// no gain, go back and probe the other direction later
+				mConnections = mBestConnections;
+				mStep = -mStep;
+				mHold = HOLD_MEASUREMENTS;
+			}
+			return mConnections;
+		}
+		
+		// at the best count, follow the changes of the link's speed
+		mBestRate = rate;
+		if (mHold > 0) {
+			--mHold;
+			return mConnections;
+		}
+		
+		if (clamp(mConnections + mStep) == mConnections)
+			mStep = -mStep;
+		mConnections = clamp(mConnections + mStep);
+		return mConnections;
+	}
+	
+	private int clamp(int connections) {
+		return Math.max(mMinConnections, Math.min(mMaxConnections, connections));
+	}
+}
@@ -0,0 +1,419 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Local cache of downloaded files, so that a URL downloaded before is not
+ * downloaded again while the server reports it unchanged. The files are
+ * stored once per content, named by their SHA-256, and each URL refers to
+ * the content it had with the ETag and Last-Modified headers it was sent
+ * with, which are sent back in If-None-Match and If-Modified-Since. Files
+ * are copied into and out of the cache, or hard-linked if enabled where the
+ * file system allows; a linked file shares the cached content, so its hash
+ * is checked again before it is restored. The contents used least recently
+ * are removed once the cache is larger than its max. size. Only the files
+ * named like those of the cache are ever deleted from its folder.
+ */
+public class ContentCache {
+	
+	/** Default max. size of the cached files (in bytes) */
+	public static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+	
+	/** Name of the index file in the cache folder */
+	private static final String INDEX_FILE = "index";
+	
+	// Constants for the file format of the index
+	private static final int MAGIC = 0x4A444D43; // "JDMC"
+	
+	// Member variables
+	private File mFolder;
+	private long mMaxSize;
+	private boolean mUseLinks;
+	private long mSize;
+	/** The contents by hash, least recently used first */
+	private LinkedHashMap<String, Long> mContents;
+	/** The cached URLs */
+	private HashMap<String, Entry> mEntries;
+	
+	/**
+	 * Constructor, reads the index of the cache if there is one
+	 * @param folder folder of the cached files, created if it does not exist
+	 * @param maxSize max. size of the cached files (in bytes)
+	 * @throws IOException if the folder cannot be created
+	 */
+	public ContentCache(File folder, long maxSize) throws IOException {
+		mFolder = folder;
+		mMaxSize = maxSize;
+		mUseLinks = false;
+		mSize = 0;
+		mContents = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		mEntries = new HashMap<String, Entry>();
+		Files.createDirectories(folder.toPath());
+	
+		File index = new File(folder, INDEX_FILE);
+		if (index.exists()) {
+			try {
+				readIndex(index);
+			} catch (IOException e) {
+				// the files are still there, only the URLs referring to them are lost
+				System.out.println("Cannot read the cache index: " + e.getMessage());
+				mContents.clear();
+				mEntries.clear();
+			}
+		}
+		removeUnused();
+	}
+	
+	public synchronized long getMaxSize() {
+		return mMaxSize;
+	}
+	
+	public synchronized void setMaxSize(long value) throws IOException {
+		mMaxSize = value;
+		evict();
+		writeIndex();
+	}
+	
+	/**
+	 * Get the size of the cached files (in bytes)
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+	
+	public synchronized boolean isUseLinks() {
+		return mUseLinks;
+	}
+	
+	/**
+	 * Set whether files are hard-linked rather than copied, where possible.
+	 * Saves the copies, but a linked file modified in place modifies the
+	 * cached content, which is then found corrupt when restored.
+	 */
+	public synchronized void setUseLinks(boolean value) {
+		mUseLinks = value;
+	}
+	
+	/**
+	 * Get what was cached for the url
+	 * @return null if nothing is cached
+	 */
+	public synchronized Entry get(URL url) {
+		return mEntries.get(url.toString());
+	}
+	
+	/**
+	 * Put the content of a cached url into a file, replacing the file
+	 * @param entry an entry returned by get()
+	 * @param file
+	 * @return false if the content is no longer cached
+	 * @throws IOException
+	 */
+	public synchronized boolean restore(Entry entry, String file) throws IOException {
+		File content = new File(mFolder, entry.hash);
+		if (mContents.get(entry.hash) == null || content.length() != entry.fileSize) {
+			remove(entry.url);
+			return false;
+		}
+		
+		// the content may have been modified through a link to it
+		IntegrityCheck check = new IntegrityCheck(IntegrityCheck.SHA256, entry.hash);
+		if (mUseLinks && !check.matches(check.computeFile(content.getPath()))) {
+			System.out.println("Corrupt cached content " + entry.hash);
+			removeContent(entry.hash);
+			writeIndex();
+			return false;
+		}
+	
+		Path target = new File(file).toPath();
+		Files.deleteIfExists(target);
+		transfer(content.toPath(), target);
+		writeIndex();
+		return true;
+	}
+	
+	/**
+	 * Add a downloaded file as the content of the url
+	 * @param url
+	 * @param eTag the entity tag the file was sent with, null if none
+	 * @param lastModified the Last-Modified header the file was sent with, null if none
+	 * @param file the downloaded file
+	 * @param hash SHA-256 of the file in hex
+	 * @throws IOException
+	 */
+	public synchronized void put(URL url, String eTag, String lastModified, String file, String hash)
+			throws IOException {
+		long fileSize = new File(file).length();
+		if (fileSize > mMaxSize)
+			return;
+	
+		if (mContents.get(hash) == null) {
+			File content = new File(mFolder, hash);
+			File tempFile = new File(mFolder, hash + ".tmp");
+			Files.deleteIfExists(tempFile.toPath());
+			transfer(new File(file).toPath(), tempFile.toPath());
+			Files.move(tempFile.toPath(), content.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			mContents.put(hash, Long.valueOf(fileSize));
+			mSize += fileSize;
+		}
+	
+		Entry entry = new Entry();
+		entry.url = url.toString();
+		entry.eTag = eTag;
+		entry.lastModified = lastModified;
+		entry.fileSize = fileSize;
+		entry.hash = hash;
+		// the content the url had before may be used by no other
+		Entry oldEntry = mEntries.put(entry.url, entry);
+		if (oldEntry != null && !oldEntry.hash.equals(hash))
+			removeUnused();
+		evict();
+		writeIndex();
+	}
+	
+	/**
+	 * Forget the content of the url, e.g. when the server sent another one
+	 */
+	public synchronized void remove(String url) throws IOException {
+		if (mEntries.remove(url) == null)
+			return;
+		removeUnused();
+		writeIndex();
+	}
+	
+	/**
+	 * Link the file to the target if allowed and possible, otherwise copy it
+	 */
+	private void transfer(Path source, Path target) throws IOException {
+		if (mUseLinks) {
+			try {
+				Files.createLink(target, source);
+				return;
+			} catch (IOException e) {
+				// e.g. another file system
+			} catch (UnsupportedOperationException e) {}
+		}
+		Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Remove the contents used least recently until the cache fits its max. size
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> it = mContents.entrySet().iterator();
+		while (mSize > mMaxSize && it.hasNext()) {
+			Map.Entry<String, Long> content = it.next();
+			it.remove();
+			mSize -= content.getValue().longValue();
+			new File(mFolder, content.getKey()).delete();
+			System.out.println("Evict " + content.getKey());
+		}
+	
+		Iterator<Entry> entries = mEntries.values().iterator();
+		while (entries.hasNext()) {
+			if (!mContents.containsKey(entries.next().hash))
+				entries.remove();
+		}
+	}
+	
+	/**
+	 * Delete a content and forget the URLs referring to it
+	 */
+	private void removeContent(String hash) {
+		Long size = mContents.remove(hash);
+		if (size != null)
+			mSize -= size.longValue();
+		new File(mFolder, hash).delete();
+		
+		Iterator<Entry> entries = mEntries.values().iterator();
+		while (entries.hasNext()) {
+			if (entries.next().hash.equals(hash))
+				entries.remove();
+		}
+	}
+	
+	/**
+	 * Delete the contents which no URL refers to, and the files of the cache
+	 * which are not in the index. Other files in the folder are left alone.
+	 */
+	private void removeUnused() {
+		HashMap<String, Boolean> used = new HashMap<String, Boolean>();
+		for (Entry entry : mEntries.values())
+			used.put(entry.hash, Boolean.TRUE);
+	
+		Iterator<Map.Entry<String, Long>> it = mContents.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> content = it.next();
+			if (!used.containsKey(content.getKey())) {
+				it.remove();
+				mSize -= content.getValue().longValue();
+			}
+		}
+	
+		File[] files = mFolder.listFiles();
+		for (int i=0; files != null && i<files.length; ++i) {
+			String name = files[i].getName();
+			if (isCacheFile(name) && !name.equals(INDEX_FILE) && !mContents.containsKey(name))
+				files[i].delete();
+		}
+	}
+	
+	/**
+	 * Get whether a file name is one the cache writes: the index, a content
+	 * named by its SHA-256 in hex, or a temporary file of either
+	 */
+	private static boolean isCacheFile(String name) {
+		if (name.endsWith(".tmp"))
+			name = name.substring(0, name.length() - 4);
+		if (name.equals(INDEX_FILE))
+			return true;
+		if (name.length() != 64)
+			return false;
+		for (int i=0; i<name.length(); ++i) {
+			if (Character.digit(name.charAt(i), 16) == -1 || Character.isUpperCase(name.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Read the contents in the order they were used and the URLs referring to them
+	 */
+	private void readIndex(File index) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a cache index: " + index);
+	
+			int count = in.readInt();
+			for (int i=0; i<count; ++i) {
+				String hash = in.readUTF();
+				long fileSize = in.readLong();
+				if (new File(mFolder, hash).length() == fileSize) {
+					mContents.put(hash, Long.valueOf(fileSize));
+					mSize += fileSize;
+				}
+			}
+	
+			count = in.readInt();
+			for (int i=0; i<count; ++i) {
+				Entry entry = new Entry();
+				entry.url = in.readUTF();
+				entry.eTag = in.readUTF();
+				entry.lastModified = in.readUTF();
+				entry.fileSize = in.readLong();
+				entry.hash = in.readUTF();
+				if (entry.eTag.length() == 0)
+					entry.eTag = null;
+				if (entry.lastModified.length() == 0)
+					entry.lastModified = null;
+				if (mContents.containsKey(entry.hash))
+					mEntries.put(entry.url, entry);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Replace the index, through a temporary file so it is never left partial
+	 */
+	private void writeIndex() throws IOException {
+		File index = new File(mFolder, INDEX_FILE);
+		File tempFile = new File(mFolder, INDEX_FILE + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			ArrayList<Map.Entry<String, Long>> contents = new ArrayList<Map.Entry<String, Long>>(mContents.entrySet());
+			out.writeInt(contents.size());
+			for (int i=0; i<contents.size(); ++i) {
+				out.writeUTF(contents.get(i).getKey());
+				out.writeLong(contents.get(i).getValue().longValue());
+			}
+	
+			out.writeInt(mEntries.size());
+			for (Entry entry : mEntries.values()) {
+				out.writeUTF(entry.url);
+				out.writeUTF((entry.eTag == null) ? "" : entry.eTag);
+				out.writeUTF((entry.lastModified == null) ? "" : entry.lastModified);
+				out.writeLong(entry.fileSize);
+				out.writeUTF(entry.hash);
+			}
+			out.flush();
+			// on the disk before it replaces the index
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(tempFile.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * The content cached for a URL
+	 */
+	public static class Entry {
+		public String url;
+		/** Entity tag the content was sent with, null if none */
+		public String eTag;
+		/** Last-Modified header the content was sent with, null if none */
+		public String lastModified;
+		public long fileSize;
+		/** SHA-256 of the content in hex */
+		public String hash;
+	
+		/**
+		 * Get whether a probe of the URL describes this content
+		 */
+		public boolean matches(ProbeCache.Probe probe) {
+			if (probe.fileSize != fileSize)
+				return false;
+			if (eTag != null)
+				return eTag.equals(probe.eTag);
+			return lastModified != null && lastModified.equals(probe.lastModified);
+		}
+	}
+}
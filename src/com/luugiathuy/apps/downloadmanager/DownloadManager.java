@@ -25,8 +25,37 @@ OTHER DEALINGS IN THE SOFTWARE.
 
 package com.luugiathuy.apps.downloadmanager;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
 
 public class DownloadManager {
 	
@@ -35,16 +64,92 @@ public class DownloadManager {
 	
 	// Constant variables
 	private static final int DEFAULT_NUM_CONN_PER_DOWNLOAD = 8;
+	private static final int DEFAULT_MAX_CONNECTIONS = 32;
+	private static final int DEFAULT_MAX_CONN_PER_HOST = 8;
+	private static final int DEFAULT_MAX_ACTIVE_DOWNLOADS = 4;
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_PROGRESS_RATE = 10;
+	private static final int JOURNAL_INTERVAL = 2000;
+	private static final int HTTP2_CONNECT_TIMEOUT = 10000;
+	/** Flow-control window of an HTTP/2 stream, e.g. a segment reads 80 MB/s at 100 ms round trip */
+	private static final int HTTP2_STREAM_WINDOW = 8 * 1024 * 1024;
+	/** Flow-control window of an HTTP/2 connection, enough for 16 streams with full windows */
+	private static final int HTTP2_CONNECTION_WINDOW = 16 * HTTP2_STREAM_WINDOW;
+	/** Max. size of the HTTP/2 frames the servers send, so a buffer is filled by few frames */
+	private static final int HTTP2_MAX_FRAME_SIZE = 64 * 1024;
+	private static final int DEFAULT_FAILURE_BUDGET = 20;
 	public static final String DEFAULT_OUTPUT_FOLDER = "";
+	
+	/** Domain of the names of the MBeans */
+	public static final String JMX_DOMAIN = "com.luugiathuy.apps.downloadmanager";
 
 	// Member variables
 	private int mNumConnPerDownload;
 	private ArrayList<Downloader> mDownloadList;
+	private ProgressTicker mProgressTicker;
+	private ConnectionPool mConnectionPool;
+	private BufferPool mBufferPool;
+	private TokenBucket mSpeedLimit;
+	private boolean mIsAdaptiveConnections;
+	private ConcurrentHashMap<String, Integer> mBestConnections;
+	private int mAllocationMode;
+	private boolean mUseMappedSegments;
+	private ScheduledExecutorService mJournalTimer;
+	private GlobalMetrics mMetrics;
+	private CircuitBreaker mCircuitBreaker;
+	private ProbeCache mProbeCache;
+	private volatile ContentCache mContentCache;
+	private volatile int mFailureBudget;
+	/** Names of the registered MBeans of the downloads, null if JMX is not used */
+	private HashMap<Downloader, ObjectName> mMBeanNames;
+	private int mNextMBeanId;
+	private MetricsServer mMetricsServer;
+	private boolean mUseHttp2;
+	/** Client of the HTTP/2 downloads, created when first used */
+	private HttpClient mHttpClient;
+	/** Whether the hosts speak HTTP/2 */
+	private ConcurrentHashMap<String, Boolean> mHttp2Hosts;
+	/** TLS settings of the HTTPS connections, null for the default ones */
+	private SSLContext mSSLContext;
+	/** Socket factory shared by all HTTPS connections, so they resume each other's TLS sessions */
+	private SSLSocketFactory mSSLSocketFactory;
 	
 	/** Protected constructor */
 	protected DownloadManager() {
 		mNumConnPerDownload = DEFAULT_NUM_CONN_PER_DOWNLOAD;
 		mDownloadList = new ArrayList<Downloader>();
+		mProgressTicker = new ProgressTicker(DEFAULT_PROGRESS_RATE);
+		mConnectionPool = new ConnectionPool(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONN_PER_HOST,
+				DEFAULT_MAX_ACTIVE_DOWNLOADS);
+		mBufferPool = new BufferPool(DEFAULT_BUFFER_SIZE);
+		mSpeedLimit = new TokenBucket(TokenBucket.UNLIMITED);
+		mIsAdaptiveConnections = true;
+		mBestConnections = new ConcurrentHashMap<String, Integer>();
+		mAllocationMode = Downloader.ALLOCATE_SPARSE;
+		mUseMappedSegments = false;
+		mMetrics = new GlobalMetrics(this);
+		mCircuitBreaker = new CircuitBreaker();
+		mProbeCache = new ProbeCache(ProbeCache.DEFAULT_TTL);
+		mFailureBudget = DEFAULT_FAILURE_BUDGET;
+		mSSLContext = null;
+		mSSLSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+		mUseHttp2 = true;
+		mHttp2Hosts = new ConcurrentHashMap<String, Boolean>();
+		
+		// save the resume journals of all downloads together, so the output
+		// files are synced in batches rather than on every write
+		mJournalTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ResumeJournal");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mJournalTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				saveJournals();
+			}
+		}, JOURNAL_INTERVAL, JOURNAL_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 	
 	/**
@@ -61,6 +166,449 @@ public class DownloadManager {
 		mNumConnPerDownload = value;
 	}
 	
+	/**
+	 * Get the threads and connections shared by all downloads
+	 */
+	public ConnectionPool getConnectionPool() {
+		return mConnectionPool;
+	}
+	
+	/**
+	 * Get the max. number of connections of all downloads
+	 */
+	public int getMaxConnections() {
+		return mConnectionPool.getMaxConnections();
+	}
+	
+	/**
+	 * Set the max. number of connections of all downloads
+	 */
+	public void setMaxConnections(int value) {
+		mConnectionPool.setMaxConnections(value);
+	}
+	
+	/**
+	 * Get the max. number of connections to the same host
+	 */
+	public int getMaxConnectionsPerHost() {
+		return mConnectionPool.getMaxConnectionsPerHost();
+	}
+	
+	/**
+	 * Set the max. number of connections to the same host
+	 */
+	public void setMaxConnectionsPerHost(int value) {
+		mConnectionPool.setMaxConnectionsPerHost(value);
+	}
+	
+	/**
+	 * Get the max. number of downloads running at the same time
+	 */
+	public int getMaxActiveDownloads() {
+		return mConnectionPool.getMaxActiveDownloads();
+	}
+	
+	/**
+	 * Set the max. number of downloads running at the same time
+	 */
+	public void setMaxActiveDownloads(int value) {
+		mConnectionPool.setMaxActiveDownloads(value);
+	}
+	
+	/**
+	 * Get the downloads waiting to start, in the order they will be started
+	 */
+	public ArrayList<Downloader> getQueuedDownloads() {
+		return mConnectionPool.getQueuedDownloads();
+	}
+	
+	/**
+	 * Move a queued download before the others of its priority
+	 * @return false if the download is not queued
+	 */
+	public boolean moveToFront(Downloader download) {
+		return mConnectionPool.moveToFront(download);
+	}
+	
+	/**
+	 * Get the buffers shared by all downloads
+	 */
+	public BufferPool getBufferPool() {
+		return mBufferPool;
+	}
+	
+	/**
+	 * Get the size of the buffers used to read from the connections
+	 */
+	public int getBufferSize() {
+		return mBufferPool.getBufferSize();
+	}
+	
+	/**
+	 * Set the size of the buffers used to read from the connections. It must
+	 * not be larger than the smallest segment split.
+	 */
+	public void setBufferSize(int value) {
+		if (value < 1 || value > SegmentScheduler.MIN_SPLIT_SIZE)
+			throw new IllegalArgumentException("Invalid buffer size: " + value);
+		mBufferPool.setBufferSize(value);
+	}
+	
+	/**
+	 * Get whether the number of connections of each download is adjusted to
+	 * its measured speed
+	 */
+	public boolean isAdaptiveConnections() {
+		return mIsAdaptiveConnections;
+	}
+	
+	/**
+	 * Set whether the number of connections of each download is adjusted to
+	 * its measured speed, starting from the best number found for its host.
+	 * If not, each download uses the number of connections per download.
+	 */
+	public void setAdaptiveConnections(boolean value) {
+		mIsAdaptiveConnections = value;
+	}
+	
+	/**
+	 * Get the number of connections which gave the best speed for the host
+	 * of the url
+	 * @param url
+	 * @param defaultValue returned if nothing was downloaded from the host yet
+	 */
+	public int getBestConnections(URL url, int defaultValue) {
+		Integer value = mBestConnections.get(url.getHost().toLowerCase());
+		return (value == null) ? defaultValue : value.intValue();
+	}
+	
+	/**
+	 * Remember the number of connections which gave the best speed for the
+	 * host of the url
+	 */
+	public void setBestConnections(URL url, int value) {
+		mBestConnections.put(url.getHost().toLowerCase(), Integer.valueOf(value));
+	}
+	
+	/**
+	 * Get the limit of the speed of all downloads together
+	 */
+	public TokenBucket getSpeedLimit() {
+		return mSpeedLimit;
+	}
+	
+	/**
+	 * Get the max. speed of all downloads together (in bytes per second), 0 if unlimited
+	 */
+	public long getMaxSpeed() {
+		return mSpeedLimit.getRate();
+	}
+	
+	/**
+	 * Set the max. speed of all downloads together (in bytes per second), 0
+	 * for unlimited. Takes effect immediately on the running downloads.
+	 */
+	public void setMaxSpeed(long value) {
+		mSpeedLimit.setRate(value);
+	}
+	
+	/**
+	 * Get how the output files of new downloads are allocated
+	 */
+	public int getAllocationMode() {
+		return mAllocationMode;
+	}
+	
+	/**
+	 * Set how the output files of new downloads are allocated
+	 * @param value one of Downloader.ALLOCATE_NONE, ALLOCATE_SPARSE or ALLOCATE_FULL
+	 */
+	public void setAllocationMode(int value) {
+		mAllocationMode = value;
+	}
+	
+	/**
+	 * Get whether new downloads write into memory-mapped file regions
+	 */
+	public boolean isUseMappedSegments() {
+		return mUseMappedSegments;
+	}
+	
+	/**
+	 * Set whether new downloads write into memory-mapped file regions instead
+	 * of calling write for each buffer
+	 */
+	public void setUseMappedSegments(boolean value) {
+		mUseMappedSegments = value;
+	}
+	
+	/**
+	 * Get whether downloads and segments run on virtual threads
+	 */
+	public boolean isUseVirtualThreads() {
+		return mConnectionPool.isUseVirtualThreads();
+	}
+	
+	/**
+	 * Run downloads and segments on virtual threads (Java 21+), which allows
+	 * much higher connection limits without the cost of platform threads
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public void setUseVirtualThreads(boolean value) {
+		mConnectionPool.setUseVirtualThreads(value);
+	}
+	
+	/**
+	 * Get the number of progress notifications per second for each download
+	 */
+	public int getProgressRate() {
+		return mProgressTicker.getRate();
+	}
+	
+	/**
+	 * Set the number of progress notifications per second for each download
+	 */
+	public void setProgressRate(int value) {
+		mProgressTicker.setRate(value);
+	}
+	
+	/**
+	 * Set the executor the downloads' observers are notified on
+	 */
+	public void setNotificationExecutor(Executor executor) {
+		mProgressTicker.setNotificationExecutor(executor);
+	}
+	
+	/**
+	 * Get the TLS settings of the HTTPS connections, null for the default ones
+	 */
+	public synchronized SSLContext getSSLContext() {
+		return mSSLContext;
+	}
+	
+	/**
+	 * Set the TLS settings of the HTTPS connections, e.g. to trust a
+	 * self-signed server. Applies to the connections opened from now on.
+	 * @param value the context, null for the default one
+	 */
+	public synchronized void setSSLContext(SSLContext value) {
+		mSSLContext = value;
+		mSSLSocketFactory = (value == null) ? HttpsURLConnection.getDefaultSSLSocketFactory()
+				: value.getSocketFactory();
+		mHttpClient = null;
+	}
+	
+	/**
+	 * Get whether the downloads from servers speaking HTTP/2 use it
+	 */
+	public synchronized boolean isUseHttp2() {
+		return mUseHttp2;
+	}
+	
+	/**
+	 * Set whether the downloads from servers speaking HTTP/2 multiplex their
+	 * segments over one connection. Applies to the downloads started from now on.
+	 */
+	public synchronized void setUseHttp2(boolean value) {
+		mUseHttp2 = value;
+	}
+	
+	/**
+	 * Get the client of the HTTP/2 downloads. All downloads share it, so the
+	 * segments of the files on a host are streams of one connection. Its
+	 * flow-control windows are raised for bulk transfers, unless they are
+	 * set on the command line.
+	 */
+	public synchronized HttpClient getHttpClient() {
+		if (mHttpClient == null) {
+			setDefaultProperty("jdk.httpclient.windowsize", HTTP2_STREAM_WINDOW);
+			setDefaultProperty("jdk.httpclient.connectionWindowSize", HTTP2_CONNECTION_WINDOW);
+			setDefaultProperty("jdk.httpclient.maxframesize", HTTP2_MAX_FRAME_SIZE);
+			
+			HttpClient.Builder builder = HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_2)
+					.followRedirects(HttpClient.Redirect.NORMAL)
+					.connectTimeout(Duration.ofMillis(HTTP2_CONNECT_TIMEOUT));
+			if (mSSLContext != null)
+				builder.sslContext(mSSLContext);
+			mHttpClient = builder.build();
+		}
+		return mHttpClient;
+	}
+	
+	private static void setDefaultProperty(String name, int value) {
+		if (System.getProperty(name) == null)
+			System.setProperty(name, Integer.toString(value));
+	}
+	
+	/**
+	 * Get whether the server of the URL negotiates HTTP/2, as found by the
+	 * probe of a download from the host, without asking it
+	 * @return null if the host is not known yet or HTTP/2 is not used
+	 */
+	public Boolean getHttp2(URL url) {
+		if (!isUseHttp2())
+			return Boolean.FALSE;
+		return mHttp2Hosts.get(ConnectionPool.getHostKey(url));
+	}
+	
+	/**
+	 * Record whether the server of the URL negotiates HTTP/2, for the next
+	 * downloads from the host
+	 */
+	void setHttp2(URL url, boolean value) {
+		mHttp2Hosts.put(ConnectionPool.getHostKey(url), Boolean.valueOf(value));
+	}
+	
+	/**
+	 * Get the socket factory of the HTTPS connections. Connections from the
+	 * same factory share its TLS session cache, and the idle ones are kept
+	 * alive for the next request to the host.
+	 */
+	public synchronized SSLSocketFactory getSSLSocketFactory() {
+		return mSSLSocketFactory;
+	}
+	
+	/**
+	 * Create TLS settings trusting only the certificates of a file, e.g. the
+	 * certificate of a self-signed server
+	 * @param certificateFile certificates in PEM or DER format
+	 * @return the context
+	 * @throws IOException if the file cannot be read or holds no valid certificate
+	 */
+	public static SSLContext createSSLContext(File certificateFile) throws IOException {
+		InputStream in = new FileInputStream(certificateFile);
+		try {
+			KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			trustStore.load(null, null);
+			int i = 0;
+			for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in))
+				trustStore.setCertificateEntry("certificate" + (i++), certificate);
+			if (i == 0)
+				throw new IOException("No certificate in " + certificateFile);
+			
+			TrustManagerFactory trustManagerFactory =
+					TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagerFactory.init(trustStore);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, trustManagerFactory.getTrustManagers(), null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Invalid certificates in " + certificateFile + ": " + e.getMessage(), e);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Get the circuit breaker of the hosts, shared by all downloads
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return mCircuitBreaker;
+	}
+	
+	/**
+	 * Get the cache of what the probes found out about the URLs, shared by all downloads
+	 */
+	public ProbeCache getProbeCache() {
+		return mProbeCache;
+	}
+	
+	/**
+	 * Get the cache the downloaded files are kept in, null if there is none
+	 */
+	public ContentCache getContentCache() {
+		return mContentCache;
+	}
+	
+	/**
+	 * Set the cache to keep the downloaded files in, so that downloading a
+	 * URL again is served from it while the server reports it unchanged
+	 * @param contentCache null to not cache the files
+	 */
+	public void setContentCache(ContentCache contentCache) {
+		mContentCache = contentCache;
+	}
+	
+	/**
+	 * Get the number of failed requests a download retries before it is in error
+	 */
+	public int getFailureBudget() {
+		return mFailureBudget;
+	}
+	
+	/**
+	 * Set the number of failed requests a download retries before it is in
+	 * error, counted from the last time the download was started or resumed
+	 */
+	public void setFailureBudget(int value) {
+		mFailureBudget = value;
+	}
+	
+	/**
+	 * Get the metrics of all downloads
+	 */
+	public GlobalMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * Register the metrics of the manager and of each download with the
+	 * platform MBean server. Downloads added later are registered too.
+	 * @throws JMException
+	 */
+	public synchronized void registerMBeans() throws JMException {
+		if (mMBeanNames != null)
+			return;
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(mMetrics, new ObjectName(JMX_DOMAIN + ":type=DownloadManager"));
+		mMBeanNames = new HashMap<Downloader, ObjectName>();
+		Downloader[] downloads;
+		synchronized (mDownloadList) {
+			downloads = mDownloadList.toArray(new Downloader[mDownloadList.size()]);
+		}
+		for (int i=0; i<downloads.length; ++i)
+			registerMBean(downloads[i]);
+	}
+	
+	private synchronized void registerMBean(Downloader download) {
+		if (mMBeanNames == null)
+			return;
+		
+		try {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Download,id=" + (++mNextMBeanId));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(download.getMetrics(), name);
+			mMBeanNames.put(download, name);
+		} catch (JMException e) {
+			System.out.println("Cannot register the metrics of " + download.getURL() + ": " + e.getMessage());
+		}
+	}
+	
+	private synchronized void unregisterMBean(Downloader download) {
+		if (mMBeanNames == null || !mMBeanNames.containsKey(download))
+			return;
+		
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mMBeanNames.remove(download));
+		} catch (JMException e) {
+			System.out.println("Cannot unregister the metrics of " + download.getURL() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Serve the metrics over HTTP at /metrics on the loopback address
+	 * @param port the port to listen on, 0 for any free port
+	 * @return the server, which is also stopped by the next call
+	 * @throws IOException
+	 */
+	public synchronized MetricsServer startMetricsServer(int port) throws IOException {
+		if (mMetricsServer != null)
+			mMetricsServer.stop();
+		mMetricsServer = new MetricsServer(this, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		return mMetricsServer;
+	}
+	
 	/**
 	 * Get the downloader object in the list
 	 * @param index
@@ -71,7 +619,12 @@ public class DownloadManager {
 	}
 	
 	public void removeDownload(int index) {
-		mDownloadList.remove(index);
+		Downloader download;
+		synchronized (mDownloadList) {
+			download = mDownloadList.remove(index);
+		}
+		mProgressTicker.unregister(download);
+		unregisterMBean(download);
 	}
 	
 	/**
@@ -84,17 +637,146 @@ public class DownloadManager {
 	
 	
 	public Downloader createDownload(URL verifiedURL, String outputFolder) {
-		HttpDownloader fd = new HttpDownloader(verifiedURL, outputFolder, mNumConnPerDownload);
-		mDownloadList.add(fd);
+		return createDownload(verifiedURL, outputFolder, null);
+	}
+	
+	/**
+	 * Create and queue a download with the given priority
+	 * @param verifiedURL
+	 * @param outputFolder
+	 * @param priority one of the Downloader.PRIORITY_ constants, or any other value
+	 * @return the download
+	 */
+	public Downloader createDownload(URL verifiedURL, String outputFolder, int priority) {
+		Downloader fd = newDownloader(verifiedURL, outputFolder, null, null);
+		fd.mPriority = priority;
+		addDownload(fd);
+		
+		return fd;
+	}
+	
+	/**
+	 * Create and queue a download which is verified when it completes
+	 * @param verifiedURL
+	 * @param outputFolder
+	 * @param integrityCheck expected checksum of the file, null to not verify it
+	 * @return the download
+	 */
+	public Downloader createDownload(URL verifiedURL, String outputFolder, IntegrityCheck integrityCheck) {
+		return createDownload(verifiedURL, outputFolder, integrityCheck, null);
+	}
+	
+	/**
+	 * Create and queue a download whose blocks are verified as they are
+	 * written, so a corrupt block is downloaded again on its own
+	 * @param verifiedURL
+	 * @param outputFolder
+	 * @param integrityCheck expected checksum of the file, null to not verify it
+	 * @param chunkManifest hashes of the blocks of the file, null to not verify them
+	 * @return the download
+	 */
+	public Downloader createDownload(URL verifiedURL, String outputFolder, IntegrityCheck integrityCheck,
+			ChunkManifest chunkManifest) {
+		Downloader fd = newDownloader(verifiedURL, outputFolder, integrityCheck, chunkManifest);
+		addDownload(fd);
 		
 		return fd;
 	}
 	
+	/**
+	 * Create and queue a download from several mirrors of the same file.
+	 * The segments are spread over the mirrors by their speed.
+	 * @param verifiedURLs the URL of the file followed by its mirrors
+	 * @param outputFolder
+	 * @param integrityCheck expected checksum of the file, null to not verify it
+	 * @param chunkManifest hashes of the blocks of the file, null to not verify them
+	 * @return the download
+	 */
+	public Downloader createDownload(List<URL> verifiedURLs, String outputFolder, IntegrityCheck integrityCheck,
+			ChunkManifest chunkManifest) {
+		Downloader fd = newDownloader(verifiedURLs.get(0), outputFolder, integrityCheck, chunkManifest);
+		for (int i=1; i<verifiedURLs.size(); ++i)
+			fd.addMirror(verifiedURLs.get(i));
+		addDownload(fd);
+		
+		return fd;
+	}
+	
+	/**
+	 * Create the downloader of a URL. The protocol of the server is found
+	 * when the download runs, so creating it never waits for the server.
+	 */
+	private Downloader newDownloader(URL url, String outputFolder, IntegrityCheck integrityCheck,
+			ChunkManifest chunkManifest) {
+		return new HttpDownloader(url, outputFolder, mNumConnPerDownload, integrityCheck, chunkManifest);
+	}
+	
+	/**
+	 * Resume the downloads whose journals are found in the output folder
+	 * @param outputFolder
+	 */
+	public void restoreDownloads(String outputFolder) {
+		File[] files = new File(outputFolder.length() == 0 ? "." : outputFolder).listFiles();
+		if (files == null)
+			return;
+		
+		for (int i=0; i<files.length; ++i) {
+			if (!files[i].getName().endsWith(ResumeJournal.EXTENSION))
+				continue;
+			
+			try {
+				ResumeJournal.Entry entry = ResumeJournal.read(files[i]);
+				System.out.println("Resume " + entry.url);
+				ChunkManifest chunkManifest = null;
+				File manifestFile = new File(entry.outputFile + ChunkManifest.EXTENSION);
+				if (manifestFile.exists())
+					chunkManifest = ChunkManifest.read(manifestFile);
+				Downloader fd = new HttpDownloader(entry.url, outputFolder, mNumConnPerDownload,
+						entry.integrityCheck, chunkManifest, entry.fileSize, entry.completed);
+				for (int j=0; j<entry.mirrors.size(); ++j)
+					fd.addMirror(entry.mirrors.get(j));
+				addDownload(fd);
+			} catch (IOException e) {
+				System.out.println("Cannot resume from " + files[i] + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Add a download to the list and queue it
+	 */
+	private void addDownload(Downloader download) {
+		synchronized (mDownloadList) {
+			mDownloadList.add(download);
+		}
+		mProgressTicker.register(download);
+		registerMBean(download);
+		download.download();
+	}
+	
+	/**
+	 * Save the resume journals of the downloads which have progressed
+	 */
+	private void saveJournals() {
+		Downloader[] downloads;
+		synchronized (mDownloadList) {
+			downloads = mDownloadList.toArray(new Downloader[mDownloadList.size()]);
+		}
+		
+		for (int i=0; i<downloads.length; ++i) {
+			try {
+				downloads[i].saveJournal();
+			} catch (IOException e) {
+				System.out.println("Cannot save journal: " + e.getMessage());
+			}
+		}
+	}
+	
 	/**
 	 * Get the unique instance of this class
 	 * @return the instance of this class
 	 */
-	public static DownloadManager getInstance() {
+	public static synchronized DownloadManager getInstance() {
 		if (sInstance == null)
 			sInstance = new DownloadManager();
 		
@@ -107,8 +789,9 @@ public class DownloadManager {
 	 * @return the verified URL, null if invalid
 	 */
 	public static URL verifyURL(String fileURL) {
-		// Only allow HTTP URLs.
-        if (!fileURL.toLowerCase().startsWith("http://"))
+		// Only allow HTTP and HTTPS URLs.
+		String lowerCaseURL = fileURL.toLowerCase();
+        if (!lowerCaseURL.startsWith("http://") && !lowerCaseURL.startsWith("https://"))
             return null;
         
         // Verify format of URL.
@@ -0,0 +1,371 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command-line front end running the downloads of a URL list without any
+ * user interface. Progress is written to the standard output as JSON lines,
+ * one object per event, at the progress rate of the DownloadManager; the
+ * log of the downloads goes to the standard error. The exit code is 0 if
+ * all files are downloaded (and extracted), 1 if any failed and 2 on
+ * invalid arguments.
+ * 
+ * Each line of the list holds a URL, optionally followed by mirrors of the
+ * same file and the expected checksum as algorithm:hex. Empty lines and
+ * lines starting with # are skipped.
+ */
+public class DownloadManagerCLI implements Observer {
+	
+	private static final String USAGE =
+			"Usage: DownloadManagerCLI [options] [url-list-file | -]\n"
+			+ "Reads the URLs from the standard input if no file or - is given.\n"
+			+ "Options:\n"
+			+ "  -o <folder>     output folder (default: current folder)\n"
+			+ "  -j <count>      max. number of downloads at the same time\n"
+			+ "  -c <count>      connections per download\n"
+			+ "  -r <rate>       progress lines per second and download (default: 1)\n"
+			+ "  -l <bytes/s>    max. speed of all downloads\n"
+			+ "  -m <port>       serve the metrics at http://localhost:<port>/metrics\n"
+			+ "  -t <file>       trust only the certificates of the PEM file for HTTPS\n"
+			+ "  -k <folder>     keep the files in a cache folder, to not download them again\n"
+			+ "  -K <bytes>      max. size of the cache (default: 10 GB)\n"
+			+ "  -x <folder>     extract the archives into the folder while downloading,\n"
+			+ "                  other files are left as they are\n"
+			+ "  -q              no progress lines, only the results\n";
+	
+	/** Options followed by a value */
+	private static final List<String> VALUE_OPTIONS = Arrays.asList("-o", "-j", "-c", "-r", "-l", "-m", "-t", "-k", "-K", "-x");
+	
+	private static final int DEFAULT_PROGRESS_RATE = 1;
+	
+	// Exit codes
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_FAILED = 1;
+	public static final int EXIT_USAGE = 2;
+	
+	// Member variables
+	private PrintStream mOut;
+	private boolean mIsQuiet;
+	private ArrayList<Downloader> mDownloads;
+	private ArrayList<ArchiveExtractor> mExtractors;
+	private File mExtractFolder;
+	private boolean[] mIsDone;
+	private CountDownLatch mRemaining;
+	
+	/**
+	 * Constructor
+	 * @param out stream the JSON lines are written to
+	 * @param isQuiet whether to leave out the progress lines
+	 */
+	public DownloadManagerCLI(PrintStream out, boolean isQuiet) {
+		mOut = out;
+		mIsQuiet = isQuiet;
+		mDownloads = new ArrayList<Downloader>();
+		mExtractors = new ArrayList<ArchiveExtractor>();
+	}
+	
+	/**
+	 * Set the folder the archives are extracted into while they are
+	 * downloaded, null to not extract them
+	 */
+	public void setExtractFolder(File folder) {
+		mExtractFolder = folder;
+	}
+	
+	/**
+	 * Queue the downloads of the list and wait until all of them are over
+	 * @param lines lines of the URL list
+	 * @param outputFolder
+	 * @return the exit code
+	 * @throws InterruptedException
+	 */
+	public int run(ArrayList<String> lines, String outputFolder) throws InterruptedException {
+		DownloadManager manager = DownloadManager.getInstance();
+		ArrayList<List<URL>> urls = new ArrayList<List<URL>>();
+		ArrayList<IntegrityCheck> checks = new ArrayList<IntegrityCheck>();
+		boolean isValid = true;
+		for (int i=0; i<lines.size(); ++i) {
+			String[] fields = lines.get(i).split("\\s+");
+			ArrayList<URL> sources = new ArrayList<URL>();
+			IntegrityCheck check = null;
+			boolean isValidLine = true;
+			for (int j=0; j<fields.length; ++j) {
+				URL url = DownloadManager.verifyURL(fields[j]);
+				if (url != null) {
+					sources.add(url);
+					continue;
+				}
+				// the checksum comes last, after at least one URL
+				try {
+					if (j == 0 || j != fields.length - 1)
+						throw new IllegalArgumentException();
+					check = IntegrityCheck.parse(fields[j]);
+				} catch (IllegalArgumentException e) {
+					isValidLine = false;
+				}
+			}
+			if (!isValidLine) {
+				printEvent("invalid", fields[0], null, "\"line\":" + (i + 1));
+				isValid = false;
+			}
+			urls.add(sources);
+			checks.add(check);
+		}
+		if (!isValid)
+			return EXIT_USAGE;
+		
+		// observe before queuing, so no state change is missed
+		mIsDone = new boolean[urls.size()];
+		mRemaining = new CountDownLatch(urls.size());
+		synchronized (this) {
+			for (int i=0; i<urls.size(); ++i) {
+				Downloader download = manager.createDownload(urls.get(i), outputFolder, checks.get(i), null);
+				mDownloads.add(download);
+				download.addObserver(this);
+				update(download, null);
+				if (mExtractFolder != null) {
+					ArchiveExtractor extractor = new ArchiveExtractor(download, mExtractFolder);
+					mExtractors.add(extractor);
+					extractor.start();
+				}
+			}
+		}
+		mRemaining.await();
+		
+		int failedExtractions = 0;
+		for (int i=0; i<mExtractors.size(); ++i) {
+			ArchiveExtractor extractor = mExtractors.get(i);
+			extractor.join();
+			Downloader download = extractor.getDownloader();
+			StringBuilder extra = new StringBuilder("\"folder\":");
+			appendString(extra, extractor.getFolder().getPath());
+			extra.append(",\"files\":").append(extractor.getFileCount());
+			extra.append(",\"extracted\":").append(extractor.getExtractedSize());
+			if (extractor.isSkipped())
+				extra.append(",\"skipped\":true");
+			if (extractor.getError() != null) {
+				extra.append(",\"error\":");
+				appendString(extra, String.valueOf(extractor.getError().getMessage()));
+				++failedExtractions;
+			}
+			printEvent("extract", download.getURL(), download, extra.toString());
+		}
+		
+		int completed = 0;
+		for (int i=0; i<mDownloads.size(); ++i) {
+			Downloader download = mDownloads.get(i);
+			printEvent("result", download.getURL(), download, null);
+			if (download.getState() == Downloader.COMPLETED)
+				++completed;
+		}
+		int failed = mDownloads.size() - completed;
+		mOut.println("{\"event\":\"summary\",\"total\":" + mDownloads.size()
+				+ ",\"completed\":" + completed + ",\"failed\":" + failed + "}");
+		mOut.flush();
+		return (failed == 0 && failedExtractions == 0) ? EXIT_OK : EXIT_FAILED;
+	}
+	
+	@Override
+	public synchronized void update(Observable o, Object arg) {
+		Downloader download = (Downloader)o;
+		int index = mDownloads.indexOf(download);
+		if (index == -1 || mIsDone[index])
+			return;
+		
+		if (arg != null) {
+			if (!mIsQuiet)
+				printEvent("progress", download.getURL(), download, null);
+			return;
+		}
+		
+		printEvent("state", download.getURL(), download, null);
+		// the command line cannot resume a download, so an error is final
+		int state = download.getState();
+		if (state == Downloader.COMPLETED || state == Downloader.ERROR || state == Downloader.CANCELLED) {
+			mIsDone[index] = true;
+			mRemaining.countDown();
+		}
+	}
+	
+	/**
+	 * Write one event as a JSON line
+	 * @param download null if there is no download
+	 * @param extra more members of the object, null if none
+	 */
+	private void printEvent(String event, String url, Downloader download, String extra) {
+		StringBuilder sb = new StringBuilder(160);
+		sb.append("{\"event\":\"").append(event).append("\",\"url\":");
+		appendString(sb, url);
+		if (download != null) {
+			sb.append(",\"file\":");
+			appendString(sb, download.mOutputFolder + download.mFileName);
+			sb.append(",\"state\":\"").append(Downloader.STATUSES[download.getState()]).append('"');
+			sb.append(",\"size\":").append(download.getFileSize());
+			sb.append(",\"downloaded\":").append(download.getDownloaded());
+		}
+		if (extra != null)
+			sb.append(',').append(extra);
+		sb.append('}');
+		mOut.println(sb);
+		mOut.flush();
+	}
+	
+	private static void appendString(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i=0; i<value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+	
+	/**
+	 * Read the non-empty lines which are not comments
+	 * @param fileName the file to read, "-" for the standard input
+	 * @throws IOException
+	 */
+	private static ArrayList<String> readList(String fileName) throws IOException {
+		BufferedReader in = fileName.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in))
+				: new BufferedReader(new FileReader(fileName));
+		try {
+			ArrayList<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#"))
+					lines.add(line);
+			}
+			return lines;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @param args the command line arguments
+	 */
+	public static void main(String args[]) {
+		// keep the standard output for the JSON lines only
+		PrintStream out = System.out;
+		System.setOut(System.err);
+		
+		String listFile = "-";
+		String outputFolder = DownloadManager.DEFAULT_OUTPUT_FOLDER;
+		int progressRate = DEFAULT_PROGRESS_RATE;
+		boolean isQuiet = false;
+		int metricsPort = -1;
+		String certificateFile = null;
+		String cacheFolder = null;
+		String extractFolder = null;
+		long cacheSize = ContentCache.DEFAULT_MAX_SIZE;
+		DownloadManager manager = DownloadManager.getInstance();
+		try {
+			for (int i=0; i<args.length; ++i) {
+				String arg = args[i];
+				if (arg.equals("-q")) {
+					isQuiet = true;
+				} else if (arg.startsWith("-") && arg.length() > 1) {
+					if (!VALUE_OPTIONS.contains(arg))
+						throw new IllegalArgumentException("Unknown option " + arg);
+					if (i + 1 == args.length)
+						throw new IllegalArgumentException("Missing value of " + arg);
+					String value = args[++i];
+					try {
+						if (arg.equals("-o"))
+							outputFolder = value.endsWith("/") ? value : value + "/";
+						else if (arg.equals("-j"))
+							manager.setMaxActiveDownloads(Integer.parseInt(value));
+						else if (arg.equals("-c"))
+							manager.SetNumConnPerDownload(Integer.parseInt(value));
+						else if (arg.equals("-r"))
+							progressRate = Integer.parseInt(value);
+						else if (arg.equals("-l"))
+							manager.setMaxSpeed(Long.parseLong(value));
+						else if (arg.equals("-t"))
+							certificateFile = value;
+						else if (arg.equals("-k"))
+							cacheFolder = value;
+						else if (arg.equals("-K"))
+							cacheSize = Long.parseLong(value);
+						else if (arg.equals("-x"))
+							extractFolder = value;
+						else
+							metricsPort = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid value of " + arg + ": " + value);
+					}
+				} else {
+					listFile = arg;
+				}
+			}
+			manager.setProgressRate(progressRate);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(EXIT_USAGE);
+		}
+		
+		int exitCode;
+		try {
+			if (certificateFile != null)
+				manager.setSSLContext(DownloadManager.createSSLContext(new File(certificateFile)));
+			if (cacheFolder != null)
+				manager.setContentCache(new ContentCache(new File(cacheFolder), cacheSize));
+			if (metricsPort != -1)
+				manager.startMetricsServer(metricsPort);
+			DownloadManagerCLI cli = new DownloadManagerCLI(out, isQuiet);
+			if (extractFolder != null)
+				cli.setExtractFolder(new File(extractFolder));
+			exitCode = cli.run(readList(listFile), outputFolder);
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			exitCode = EXIT_USAGE;
+		} catch (InterruptedException e) {
+			exitCode = EXIT_FAILED;
+		}
+		System.exit(exitCode);
+	}
+}
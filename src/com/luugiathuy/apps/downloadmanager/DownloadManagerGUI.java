@@ -25,9 +25,11 @@ OTHER DEALINGS IN THE SOFTWARE.
 
 package com.luugiathuy.apps.downloadmanager;
 
+import java.awt.EventQueue;
 import java.net.URL;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.Executor;
 
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
@@ -54,6 +56,13 @@ public class DownloadManagerGUI extends javax.swing.JFrame implements Observer{
     }
     
     private void initialize() {
+    	// Deliver download notifications on the event dispatch thread
+    	DownloadManager.getInstance().setNotificationExecutor(new Executor() {
+    		public void execute(Runnable command) {
+    			EventQueue.invokeLater(command);
+    		}
+    	});
+    	
     	// Set up table
     	jtbDownload.getSelectionModel().addListSelectionListener(new
                 ListSelectionListener() {
@@ -273,6 +282,7 @@ public class DownloadManagerGUI extends javax.swing.JFrame implements Observer{
             int state = mSelectedDownloader.getState();
             switch (state) {
                 case Downloader.DOWNLOADING:
+                case Downloader.QUEUED:
                     jbnPause.setEnabled(true);
                     jbnResume.setEnabled(false);
                     jbnCancel.setEnabled(true);
@@ -315,6 +325,16 @@ public class DownloadManagerGUI extends javax.swing.JFrame implements Observer{
 		} catch (Exception e) {
 		}
 		
+		// let JMX clients such as jconsole see the metrics of the downloads
+		try {
+			DownloadManager.getInstance().registerMBeans();
+		} catch (javax.management.JMException e) {
+			System.out.println("Cannot register the metrics: " + e.getMessage());
+		}
+		
+		// continue the downloads interrupted when the application last stopped
+		DownloadManager.getInstance().restoreDownloads(DownloadManager.DEFAULT_OUTPUT_FOLDER);
+		
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
                 new DownloadManagerGUI().setVisible(true);
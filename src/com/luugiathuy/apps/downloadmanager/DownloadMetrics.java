@@ -0,0 +1,199 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics of a download and of its unfinished segments. The speeds are
+ * sampled by the ProgressTicker; the download is stalled for the intervals
+ * in which it is downloading but no byte arrives.
+ */
+public class DownloadMetrics implements DownloadMetricsMXBean {
+	
+	// Member variables
+	private Downloader mDownloader;
+	private RateMeter mMeter;
+	private volatile long mRequestTime;
+	private volatile long mConnectLatency;
+	private volatile long mTimeToFirstByte;
+	private volatile long mStallTime;
+	private volatile int mRetries;
+	
+	public DownloadMetrics(Downloader downloader) {
+		mDownloader = downloader;
+		mMeter = new RateMeter();
+		mConnectLatency = -1;
+		mTimeToFirstByte = -1;
+	}
+	
+	/**
+	 * Called when the first request of the download is started
+	 */
+	public void requesting() {
+		mRequestTime = System.nanoTime();
+	}
+	
+	/**
+	 * Called when the connection of the first request is open
+	 */
+	public void connected() {
+		mConnectLatency = System.nanoTime() - mRequestTime;
+	}
+	
+	/**
+	 * Called when the response headers of the first request are received
+	 */
+	public void responded() {
+		mTimeToFirstByte = System.nanoTime() - mRequestTime;
+	}
+	
+	/**
+	 * Called when a range of the download is requested again, e.g. after
+	 * failing verification
+	 */
+	public synchronized void retried() {
+		++mRetries;
+	}
+	
+	/**
+	 * Update the speeds of the download and its unfinished segments, called periodically
+	 */
+	public void sample(long now) {
+		long interval = mMeter.sample(mDownloader.mDownloaded.sum(), now);
+		if (interval == 0)
+			return;
+		
+		if (mDownloader.getState() == Downloader.DOWNLOADING && mMeter.getRate() == 0)
+			mStallTime += interval;
+		
+		synchronized (mDownloader.mListDownloadThread) {
+			for (int i=0; i<mDownloader.mListDownloadThread.size(); ++i) {
+				Downloader.DownloadThread aThread = mDownloader.mListDownloadThread.get(i);
+				if (!aThread.isFinished())
+					aThread.mMetrics.sample(now);
+			}
+		}
+	}
+	
+	public String getURL() {
+		return mDownloader.getURL();
+	}
+	
+	public String getState() {
+		return Downloader.STATUSES[mDownloader.getState()];
+	}
+	
+	public long getFileSize() {
+		return mDownloader.getFileSize();
+	}
+	
+	public long getDownloaded() {
+		return mDownloader.mDownloaded.sum();
+	}
+	
+	/**
+	 * Get the speed over the last sampling interval (in bytes per second)
+	 */
+	public double getBytesPerSecond() {
+		return mMeter.getRate();
+	}
+	
+	/**
+	 * Get the moving average of the speed (in bytes per second)
+	 */
+	public double getAverageBytesPerSecond() {
+		return mMeter.getAverageRate();
+	}
+	
+	/**
+	 * Get the time to open the connection of the first request (in milliseconds), -1 if unknown
+	 */
+	public double getConnectLatency() {
+		return SegmentMetrics.toMillis(mConnectLatency);
+	}
+	
+	/**
+	 * Get the time from the first request to its response (in milliseconds), -1 if unknown
+	 */
+	public double getTimeToFirstByte() {
+		return SegmentMetrics.toMillis(mTimeToFirstByte);
+	}
+	
+	/**
+	 * Get the number of retries of the download and its segments
+	 */
+	public int getRetries() {
+		int retries = mRetries;
+		synchronized (mDownloader.mListDownloadThread) {
+			for (int i=0; i<mDownloader.mListDownloadThread.size(); ++i)
+				retries += mDownloader.mListDownloadThread.get(i).mMetrics.getRetries();
+		}
+		return retries;
+	}
+	
+	/**
+	 * Get the time spent downloading without receiving data (in milliseconds)
+	 */
+	public double getStallTime() {
+		return SegmentMetrics.toMillis(mStallTime);
+	}
+	
+	/**
+	 * Get the estimated time left (in seconds), -1 if unknown
+	 */
+	public double getEta() {
+		if (mDownloader.getFileSize() < 0)
+			return -1;
+		return getEta(mDownloader.getFileSize() - mDownloader.mDownloaded.sum(), mMeter.getAverageRate());
+	}
+	
+	/**
+	 * Get the metrics of the unfinished segments
+	 */
+	public List<SegmentMetrics> getSegments() {
+		ArrayList<SegmentMetrics> segments = new ArrayList<SegmentMetrics>();
+		synchronized (mDownloader.mListDownloadThread) {
+			for (int i=0; i<mDownloader.mListDownloadThread.size(); ++i) {
+				Downloader.DownloadThread aThread = mDownloader.mListDownloadThread.get(i);
+				if (!aThread.isFinished())
+					segments.add(aThread.mMetrics);
+			}
+		}
+		return segments;
+	}
+	
+	/**
+	 * Get the time to download the remaining bytes at the given speed (in seconds)
+	 * @return -1 if unknown
+	 */
+	static double getEta(long remaining, double rate) {
+		if (remaining <= 0)
+			return 0;
+		return (rate > 0) ? remaining / rate : -1;
+	}
+}
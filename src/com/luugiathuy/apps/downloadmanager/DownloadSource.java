@@ -0,0 +1,159 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One of the URLs a file is downloaded from: the original URL or a mirror
+ * serving the same content. Segments are spread over the sources by their
+ * throughput per connection; a source which keeps failing or is much
+ * slower than the others is dropped.
+ */
+public class DownloadSource {
+	
+	// Member variables
+	private URL mURL;
+	private volatile String mETag;
+	private volatile boolean mIsValidated;
+	private volatile boolean mIsDropped;
+	/** Bytes downloaded from the source, added to on the read loop */
+	private LongAdder mBytes;
+	private AtomicInteger mFailures;
+	
+	// Scheduling state, guarded by the lock of the SegmentScheduler
+	/** Number of segments downloading from the source */
+	int mActive;
+	/** Bytes and active segments at the last measurement */
+	long mLastBytes;
+	int mLastActive;
+	/** Speed per connection at the last measurement (in bytes per second), 0 if unknown */
+	double mConnectionRate;
+	/** Number of consecutive measurements the source was too slow */
+	int mSlowCount;
+	
+	public DownloadSource(URL url) {
+		mURL = url;
+		mBytes = new LongAdder();
+		mFailures = new AtomicInteger();
+	}
+	
+	public URL getURL() {
+		return mURL;
+	}
+	
+	/**
+	 * Get the entity tag the source sent for the file, null if none
+	 */
+	public String getETag() {
+		return mETag;
+	}
+	
+	/**
+	 * Set the source validated to serve the file, with its entity tag
+	 */
+	void setValidated(String eTag) {
+		mETag = eTag;
+		mIsValidated = true;
+	}
+	
+	/**
+	 * Get whether the source was checked to serve the same file as the others
+	 */
+	public boolean isValidated() {
+		return mIsValidated;
+	}
+	
+	/**
+	 * Get whether the source is no longer used
+	 */
+	public boolean isDropped() {
+		return mIsDropped;
+	}
+	
+	void setDropped() {
+		mIsDropped = true;
+	}
+	
+	/**
+	 * Forget the validation and the measurements, to try the source again
+	 * when the download is resumed
+	 */
+	void reset() {
+		mETag = null;
+		mIsValidated = false;
+		mIsDropped = false;
+		mFailures.set(0);
+		mActive = 0;
+		mLastActive = 0;
+		mLastBytes = mBytes.sum();
+		mConnectionRate = 0;
+		mSlowCount = 0;
+	}
+	
+	/**
+	 * Get the bytes downloaded from the source
+	 */
+	public long getBytes() {
+		return mBytes.sum();
+	}
+	
+	/**
+	 * Get the speed per connection at the last measurement (in bytes per second), 0 if unknown
+	 */
+	public double getConnectionRate() {
+		return mConnectionRate;
+	}
+	
+	/**
+	 * Called on the read loop with the bytes downloaded from the source
+	 */
+	void read(int bytes) {
+		mBytes.add(bytes);
+	}
+	
+	/**
+	 * Record a successful request
+	 */
+	void success() {
+		mFailures.set(0);
+	}
+	
+	/**
+	 * Record a failed request
+	 * @return the number of consecutive failures
+	 */
+	int failure() {
+		return mFailures.incrementAndGet();
+	}
+	
+	@Override
+	public String toString() {
+		return mURL.toString();
+	}
+}
@@ -25,20 +25,33 @@ OTHER DEALINGS IN THE SOFTWARE.
 
 package com.luugiathuy.apps.downloadmanager;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Observable;
 import java.util.Observer;
 
 import javax.swing.JProgressBar;
+import javax.swing.Timer;
 import javax.swing.table.AbstractTableModel;
 
 /**
  *  This class manages the download table's data.
- *
+ *  Each download knows its row, so a notification only marks the row as
+ *  changed; the changed rows are repainted together once per frame on the
+ *  event dispatch thread. The cell values are cached, so painting a cell
+ *  allocates nothing. The rows must be added and removed on the event
+ *  dispatch thread, in the order of the download list.
  */
 public class DownloadTableModel extends AbstractTableModel implements Observer {
     
 	private static final long serialVersionUID = -7852567715605820609L;
 
+	/** Time between two repaints of the changed rows (in milliseconds) */
+	public static final int FRAME_INTERVAL = 16;
+	
 	// These are the names for the table's columns.
     private static final String[] columnNames = {"URL", "Size (KB)",
     "Progress", "Status"};
@@ -48,22 +61,96 @@ public class DownloadTableModel extends AbstractTableModel implements Observer {
 	private static final Class[] columnClasses = {String.class,
     	String.class, JProgressBar.class, String.class};
     
+    /** The values of the progress column, one per whole percent */
+    private static final Float[] PERCENTS = new Float[101];
+    static {
+    	for (int i=0; i<PERCENTS.length; ++i)
+    		PERCENTS[i] = Float.valueOf(i);
+    }
+    
+    // Member variables
+    /** The rows, read on the event dispatch thread only */
+    private ArrayList<Row> mRows;
+    /** The row of each download, guarded by this */
+    private HashMap<Downloader, Row> mRowOf;
+    /** The rows changed since the last repaint, guarded by this */
+    private BitSet mDirtyRows;
+    /** The rows being repainted, swapped with mDirtyRows */
+    private BitSet mRepaintRows;
+    private Timer mFrameTimer;
+    
+    /**
+     * Cached values of the row of a download
+     */
+    private static class Row {
+    	Downloader mDownload;
+    	int mIndex;
+    	String mURL;
+    	long mSize;
+    	String mSizeText;
+    	
+    	Row(Downloader download, int index) {
+    		mDownload = download;
+    		mIndex = index;
+    		mURL = download.getURL();
+    		mSize = -1;
+    		mSizeText = "";
+    	}
+    }
+    
+    /**
+     *  Constructor, registers for the downloads already in the manager.
+     */
+    public DownloadTableModel() {
+    	mRows = new ArrayList<Row>();
+    	mRowOf = new HashMap<Downloader, Row>();
+    	mDirtyRows = new BitSet();
+    	mRepaintRows = new BitSet();
+    	mFrameTimer = new Timer(FRAME_INTERVAL, new ActionListener() {
+    		public void actionPerformed(ActionEvent e) {
+    			repaintDirtyRows();
+    		}
+    	});
+    	mFrameTimer.setRepeats(false);
+    	
+        for (Downloader download : DownloadManager.getInstance().getDownloadList())
+            addRow(download);
+    }
+    
     /**
      *  Add a new download to the table.
      */
     public void addNewDownload(Downloader download) {
-        // Register to be notified when the download changes.
-        download.addObserver(this);
+        addRow(download);
         
         // Fire table row insertion notification to table.
         fireTableRowsInserted(getRowCount() - 1, getRowCount() - 1);
     }
     
+    private void addRow(Downloader download) {
+    	Row row = new Row(download, mRows.size());
+    	mRows.add(row);
+    	synchronized (this) {
+    		mRowOf.put(download, row);
+    	}
+        // Register to be notified when the download changes.
+        download.addObserver(this);
+    }
     
     /**
      *  Remove a download from the list.
      */
-    public void clearDownload(int row) {        
+    public void clearDownload(int row) {
+    	Row removed = mRows.remove(row);
+    	removed.mDownload.deleteObserver(this);
+    	synchronized (this) {
+    		mRowOf.remove(removed.mDownload);
+    		for (int i=row; i<mRows.size(); ++i)
+    			mRows.get(i).mIndex = i;
+    		// the rows after the removed one are repainted anyway
+    		mDirtyRows.clear(row, Math.max(row, mDirtyRows.length()));
+    	}
+        
         // Fire table row deletion notification to table.
         fireTableRowsDeleted(row, row);
     }
@@ -94,24 +181,30 @@ public class DownloadTableModel extends AbstractTableModel implements Observer {
      *  Get table's row count.
      */
     public int getRowCount() {
-        return DownloadManager.getInstance().getDownloadList().size();
+        return mRows.size();
     }
     
     /**
      *  Get value for a specific row and column combination.
      */
-    public Object getValueAt(int row, int col) {
-    	// Get download from download list
-        Downloader download = DownloadManager.getInstance().getDownloadList().get(row);
+    public Object getValueAt(int rowIndex, int col) {
+    	Row row = mRows.get(rowIndex);
+        Downloader download = row.mDownload;
         
         switch (col) {
             case 0: // URL
-                return download.getURL();
+                return row.mURL;
             case 1: // Size
-                int size = download.getFileSize();
-                return (size == -1) ? "" : (Integer.toString(size/1000));
+                long size = download.getFileSize();
+                if (size != row.mSize) {
+                	row.mSize = size;
+                	row.mSizeText = (size == -1) ? "" : Long.toString(size/1000);
+                }
+                return row.mSizeText;
             case 2: // Progress
-                return new Float(download.getProgress());
+            	size = download.getFileSize();
+            	int percent = (size <= 0) ? 0 : (int)(download.getDownloaded() * 100 / size);
+                return PERCENTS[Math.max(0, Math.min(100, percent))];
             case 3: // Status
                 return Downloader.STATUSES[download.getState()];
         }
@@ -119,12 +212,42 @@ public class DownloadTableModel extends AbstractTableModel implements Observer {
     }
     
     /**
-     * Update is called when a Download notifies its observers of any changes
+     * Update is called when a Download notifies its observers of any changes.
+     * Called by any thread; the row is repainted with the next frame.
      */
     public void update(Observable o, Object arg) {
-        int index = DownloadManager.getInstance().getDownloadList().indexOf(o);
-        
-        // Fire table row update notification to table.
-        fireTableRowsUpdated(index, index);
+    	boolean isFirst;
+    	synchronized (this) {
+    		Row row = mRowOf.get(o);
+    		if (row == null)
+    			return;
+    		isFirst = mDirtyRows.isEmpty();
+    		mDirtyRows.set(row.mIndex);
+    	}
+    	// the timer's queue is locked, so it may be started by any thread
+    	if (isFirst)
+    		mFrameTimer.start();
+    }
+    
+    /**
+     * Fire one update notification per range of rows changed since the last frame
+     */
+    private void repaintDirtyRows() {
+    	BitSet dirtyRows;
+    	synchronized (this) {
+    		dirtyRows = mDirtyRows;
+    		mDirtyRows = mRepaintRows;
+    		mRepaintRows = dirtyRows;
+    	}
+    	
+    	int rowCount = getRowCount();
+    	for (int first = dirtyRows.nextSetBit(0); first != -1 && first < rowCount;
+    			first = dirtyRows.nextSetBit(first)) {
+    		int end = Math.min(dirtyRows.nextClearBit(first), rowCount);
+    		// Fire table row update notification to table.
+    		fireTableRowsUpdated(first, end - 1);
+    		first = end;
+    	}
+    	dirtyRows.clear();
     }
-}
\ No newline at end of file
+}
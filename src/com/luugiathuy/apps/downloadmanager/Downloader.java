@@ -25,9 +25,37 @@ OTHER DEALINGS IN THE SOFTWARE.
 
 package com.luugiathuy.apps.downloadmanager;
 
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Observable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 public abstract class Downloader extends Observable implements Runnable{
 	
@@ -35,6 +63,9 @@ public abstract class Downloader extends Observable implements Runnable{
 	/** The URL to download the file */
 	protected URL mURL;
 	
+	/** The URL and the mirrors the segments are downloaded from */
+	protected List<DownloadSource> mSources;
+	
 	/** Output folder for downloaded file */
 	protected String mOutputFolder;
 	
@@ -45,25 +76,105 @@ public abstract class Downloader extends Observable implements Runnable{
 	protected String mFileName;
 	
 	/** Size of the downloaded file (in bytes) */
-	protected int mFileSize;
+	protected long mFileSize;
+	
+	/** The state of the download, only changed by the transitions allowed in TRANSITIONS */
+	protected AtomicInteger mState;
+	
+	/** Held while the download runs, so a resumed download never runs twice at the same time */
+	protected ReentrantLock mRunLock;
+	
+	/** Priority in the download queue, higher is admitted first */
+	protected volatile int mPriority;
 	
-	/** The state of the download */
-	protected int mState;
+	/** downloaded size of the file (in bytes), added to by all download threads */
+	protected LongAdder mDownloaded;
 	
-	/** downloaded size of the file (in bytes) */
-	protected int mDownloaded;
+	/** downloaded size of the file last published to the observers */
+	protected long mPublishedDownloaded;
+	
+	/** The ticker publishing the progress, null to notify on every change */
+	protected ProgressTicker mProgressTicker;
 	
 	/** List of download threads */
 	protected ArrayList<DownloadThread> mListDownloadThread;
 	
+	/** Scheduler handing out the download threads to the connections */
+	protected SegmentScheduler mScheduler;
+	
+	/** Threads and connections shared with the other downloads */
+	protected ConnectionPool mConnectionPool;
+	
+	/** Direct buffers shared with the other downloads */
+	protected BufferPool mBufferPool;
+	
+	/** Output file, shared by all download threads while downloading */
+	protected FileChannel mOutputChannel;
+	
+	/** Limit of the download speed, shared by its download threads */
+	protected TokenBucket mSpeedLimit;
+	
+	/** Limit of the speed of all downloads */
+	protected TokenBucket mGlobalSpeedLimit;
+	
+	/** Expected checksum of the file, null if it is not verified */
+	protected IntegrityCheck mIntegrityCheck;
+	
+	/** Hashes of the blocks of the file, null if they are not verified */
+	protected ChunkManifest mChunkManifest;
+	
+	/** Verifies the blocks of the manifest as they are written */
+	protected ChunkVerifier mChunkVerifier;
+	
+	/** Ranges which failed verification and are downloaded again */
+	protected List<long[]> mCorruptRanges;
+	
+	/** How the output file is allocated before downloading */
+	protected int mAllocationMode;
+	
+	/** Whether segments write into memory-mapped regions of the output file */
+	protected boolean mUseMappedSegments;
+	
+	/** Journal of the completed ranges, to resume after a restart */
+	protected ResumeJournal mJournal;
+	
+	/** downloaded size of the file when the journal was last saved */
+	protected long mJournalDownloaded;
+	
+	/** Speeds, latencies and retries of the download */
+	protected DownloadMetrics mMetrics;
+	
+	/** Content cached for the URL, which the file may be restored from, null if none */
+	protected ContentCache.Entry mCachedContent;
+	
+	/** Whether the server sends ranges of the file, otherwise one segment downloads all of it */
+	protected volatile boolean mIsRangeSupported;
+	
+	/** Failed requests of the segments since the download was last queued */
+	protected AtomicInteger mFailures;
+	
+	/** Stops the requests to hosts which keep failing, shared with the other downloads */
+	protected CircuitBreaker mCircuitBreaker;
+	
 	// Contants for block and buffer size
 	protected static final int BLOCK_SIZE = 4096;
-	protected static final int BUFFER_SIZE = 4096;
+	
+	/** Max. size of the file region mapped by a segment at a time */
+	protected static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
 	protected static final int MIN_DOWNLOAD_SIZE = BLOCK_SIZE * 100;
 	
+	/** Number of segments the file is split into for each connection */
+	protected static final int SEGMENTS_PER_CONNECTION = 4;
+	
+	/** Consecutive failed requests after which a source is dropped, if there are others */
+	protected static final int MAX_SOURCE_FAILURES = 3;
+	
+	/** Bytes at the end of the file left out of the completed prefix until the file is verified */
+	protected static final int PREFIX_HOLD_BACK = 64 * 1024;
+	
 	// These are the status names.
     public static final String STATUSES[] = {"Downloading",
-    				"Paused", "Complete", "Cancelled", "Error"};
+    				"Paused", "Complete", "Cancelled", "Error", "Queued"};
 	
 	// Contants for download's state
 	public static final int DOWNLOADING = 0;
@@ -71,6 +182,36 @@ public abstract class Downloader extends Observable implements Runnable{
 	public static final int COMPLETED = 2;
 	public static final int CANCELLED = 3;
 	public static final int ERROR = 4;
+	public static final int QUEUED = 5;
+	
+	/** The states each state can change to, as bits indexed by the state */
+	private static final int[] TRANSITIONS = {
+		// DOWNLOADING
+		(1 << PAUSED) | (1 << COMPLETED) | (1 << CANCELLED) | (1 << ERROR),
+		// PAUSED
+		(1 << QUEUED) | (1 << CANCELLED),
+		// COMPLETED
+		0,
+		// CANCELLED
+		0,
+		// ERROR
+		(1 << QUEUED) | (1 << CANCELLED),
+		// QUEUED, again when first started
+		(1 << QUEUED) | (1 << DOWNLOADING) | (1 << PAUSED) | (1 << CANCELLED) | (1 << ERROR)
+	};
+	
+	// Contants for the priority in the download queue
+	public static final int PRIORITY_LOW = -1;
+	public static final int PRIORITY_NORMAL = 0;
+	public static final int PRIORITY_HIGH = 1;
+	
+	// Contants for the allocation of the output file
+	/** The file grows as the segments write to it */
+	public static final int ALLOCATE_NONE = 0;
+	/** The file is extended to its full size without writing, sparse if supported */
+	public static final int ALLOCATE_SPARSE = 1;
+	/** The file is filled with zeros, so its blocks are allocated up front */
+	public static final int ALLOCATE_FULL = 2;
 	
 	/**
 	 * Constructor
@@ -80,6 +221,8 @@ public abstract class Downloader extends Observable implements Runnable{
 	 */
 	protected Downloader(URL url, String outputFolder, int numConnections) {
 		mURL = url;
+		mSources = new CopyOnWriteArrayList<DownloadSource>();
+		mSources.add(new DownloadSource(url));
 		mOutputFolder = outputFolder;
 		mNumConnections = numConnections;
 		
@@ -88,10 +231,26 @@ public abstract class Downloader extends Observable implements Runnable{
 		mFileName = fileURL.substring(fileURL.lastIndexOf('/') + 1);
 		System.out.println("File name: " + mFileName);
 		mFileSize = -1;
-		mState = DOWNLOADING;
-		mDownloaded = 0;
+		mState = new AtomicInteger(QUEUED);
+		mRunLock = new ReentrantLock();
+		mPriority = PRIORITY_NORMAL;
+		mDownloaded = new LongAdder();
+		mPublishedDownloaded = 0;
 		
 		mListDownloadThread = new ArrayList<DownloadThread>();
+		mConnectionPool = DownloadManager.getInstance().getConnectionPool();
+		mBufferPool = DownloadManager.getInstance().getBufferPool();
+		mSpeedLimit = new TokenBucket(TokenBucket.UNLIMITED);
+		mGlobalSpeedLimit = DownloadManager.getInstance().getSpeedLimit();
+		mAllocationMode = DownloadManager.getInstance().getAllocationMode();
+		mUseMappedSegments = DownloadManager.getInstance().isUseMappedSegments();
+		mCorruptRanges = Collections.synchronizedList(new ArrayList<long[]>());
+		mJournal = new ResumeJournal(mOutputFolder + mFileName);
+		mJournalDownloaded = 0;
+		mMetrics = new DownloadMetrics(this);
+		mFailures = new AtomicInteger();
+		mIsRangeSupported = true;
+		mCircuitBreaker = DownloadManager.getInstance().getCircuitBreaker();
 	}
 	
 	/**
@@ -105,7 +264,6 @@ public abstract class Downloader extends Observable implements Runnable{
 	 * Resume the downloader
 	 */
 	public void resume() {
-		setState(DOWNLOADING);
 		download();
 	}
 	
@@ -123,80 +281,944 @@ public abstract class Downloader extends Observable implements Runnable{
 		return mURL.toString();
 	}
 	
+	/**
+	 * Add a mirror serving the same file, before the download starts. The
+	 * mirror is only used if it has the same size and entity tag as the URL.
+	 */
+	public void addMirror(URL url) {
+		mSources.add(new DownloadSource(url));
+	}
+	
+	/**
+	 * Get the URL and the mirrors of the download
+	 */
+	public List<DownloadSource> getSources() {
+		return mSources;
+	}
+	
+	/**
+	 * Get the sources which are validated and not dropped
+	 */
+	protected List<DownloadSource> getUsableSources() {
+		ArrayList<DownloadSource> sources = new ArrayList<DownloadSource>();
+		for (int i=0; i<mSources.size(); ++i) {
+			DownloadSource source = mSources.get(i);
+			if (source.isValidated() && !source.isDropped())
+				sources.add(source);
+		}
+		return sources;
+	}
+	
+	/**
+	 * Stop using a source, unless it is the last one left. Its segments
+	 * stop and are handed to the other sources.
+	 * @return true if the source is dropped
+	 */
+	protected synchronized boolean dropSource(DownloadSource source, String reason) {
+		if (source.isDropped())
+			return true;
+		if (getUsableSources().size() < 2)
+			return false;
+		
+		System.out.println("Drop source " + source + ": " + reason);
+		source.setDropped();
+		synchronized (mListDownloadThread) {
+			for (int i=0; i<mListDownloadThread.size(); ++i) {
+				DownloadThread aThread = mListDownloadThread.get(i);
+				if (aThread.mSource == source)
+					aThread.abort();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the mirrors to record in the journal
+	 */
+	protected List<URL> getMirrorURLs() {
+		ArrayList<URL> mirrors = new ArrayList<URL>();
+		for (int i=1; i<mSources.size(); ++i)
+			mirrors.add(mSources.get(i).getURL());
+		return mirrors;
+	}
+	
 	/**
 	 * Get the downloaded file's size
 	 */
-	public int getFileSize() {
+	public long getFileSize() {
 		return mFileSize;
 	}
 	
+	/**
+	 * Get the downloaded size of the file, as last published to the observers
+	 */
+	public long getDownloaded() {
+		return mPublishedDownloaded;
+	}
+	
 	/**
 	 * Get the current progress of the download
 	 */
 	public float getProgress() {
-		return ((float)mDownloaded / mFileSize) * 100;
+		return (float)(((double)mPublishedDownloaded / mFileSize) * 100);
+	}
+	
+	/**
+	 * Get the max. download speed (in bytes per second), 0 if unlimited
+	 */
+	public long getMaxSpeed() {
+		return mSpeedLimit.getRate();
+	}
+	
+	/**
+	 * Set the max. download speed (in bytes per second), 0 for unlimited.
+	 * Takes effect immediately, also while downloading.
+	 */
+	public void setMaxSpeed(long value) {
+		mSpeedLimit.setRate(value);
+	}
+	
+	/**
+	 * Get the priority in the download queue
+	 */
+	public int getPriority() {
+		return mPriority;
+	}
+	
+	/**
+	 * Set the priority in the download queue, higher is admitted first.
+	 * A queued download moves behind the others of its new priority.
+	 */
+	public void setPriority(int value) {
+		mPriority = value;
+		mConnectionPool.requeue(this);
+	}
+	
+	/**
+	 * Get the expected checksum of the file, null if it is not verified
+	 */
+	public IntegrityCheck getIntegrityCheck() {
+		return mIntegrityCheck;
+	}
+	
+	/**
+	 * Get the hashes of the blocks of the file, null if they are not verified
+	 */
+	public ChunkManifest getChunkManifest() {
+		return mChunkManifest;
+	}
+	
+	/**
+	 * Get the ranges which failed verification and were downloaded again
+	 * @return list of {start, end} byte ranges, end inclusive
+	 */
+	public List<long[]> getCorruptRanges() {
+		return mCorruptRanges;
+	}
+	
+	/**
+	 * Get the speeds, latencies and retries of the download
+	 */
+	public DownloadMetrics getMetrics() {
+		return mMetrics;
 	}
 	
 	/**
 	 * Get current state of the downloader
 	 */
 	public int getState() {
-		return mState;
+		return mState.get();
+	}
+	
+	/**
+	 * Set the state of the downloader, if the current state can change to it
+	 * @return true if the state changed, false if the transition is not allowed
+	 */
+	protected boolean setState(int value) {
+		int current;
+		do {
+			current = mState.get();
+			if ((TRANSITIONS[current] & (1 << value)) == 0)
+				return false;
+		} while (!mState.compareAndSet(current, value));
+		
+		stateChanged(value);
+		return true;
 	}
 	
 	/**
-	 * Set the state of the downloader
+	 * Set the state of the downloader if it is the expected one and can change to the new one
+	 * @return true if the state changed
 	 */
-	protected void setState(int value) {
-		mState = value;
+	protected boolean compareAndSetState(int expected, int value) {
+		if ((TRANSITIONS[expected] & (1 << value)) == 0 || !mState.compareAndSet(expected, value))
+			return false;
+		
+		stateChanged(value);
+		return true;
+	}
+	
+	/**
+	 * Act on a state change made by this thread
+	 */
+	private void stateChanged(int value) {
+		// stop the reads in progress rather than waiting for their next bytes
+		if (value == PAUSED || value == CANCELLED || value == ERROR)
+			abortSegments();
+		// nothing to resume once the download is over
+		if (value == COMPLETED || value == CANCELLED) {
+			mJournal.delete();
+			new File(mOutputFolder + mFileName + ChunkManifest.EXTENSION).delete();
+		}
+		// let the observers see the progress up to the state change
+		publishProgress();
 		stateChanged();
 	}
 	
 	/**
-	 * Start or resume download
+	 * Set the download in ERROR state
+	 */
+	protected void error() {
+		if (setState(ERROR))
+			System.out.println("ERROR");
+	}
+	
+	/**
+	 * Queue the download to start or resume it
 	 */
 	protected void download() {
-		Thread t = new Thread(this);
-		t.start();
+		if (setState(QUEUED))
+			mConnectionPool.startDownload(this);
 	}
 	
 	/**
-	 * Increase the downloaded size
+	 * Run the download on the calling thread if it is still queued. A run
+	 * still stopping after a pause is waited for, so the segments are never
+	 * downloaded by two runs at the same time.
 	 */
-	protected synchronized void downloaded(int value) {
-		mDownloaded += value;
-		stateChanged();
+	void runQueued() {
+		mRunLock.lock();
+		try {
+			if (!compareAndSetState(QUEUED, DOWNLOADING))
+				return;
+			
+			// each start or resume gets the full failure budget and all sources
+			mFailures.set(0);
+			for (int i=0; i<mSources.size(); ++i)
+				mSources.get(i).reset();
+			run();
+		} finally {
+			mRunLock.unlock();
+		}
+	}
+	
+	/**
+	 * Stop the reads of the running segments, e.g. when the download is paused
+	 */
+	protected void abortSegments() {
+		synchronized (mListDownloadThread) {
+			for (int i=0; i<mListDownloadThread.size(); ++i)
+				mListDownloadThread.get(i).abort();
+		}
+	}
+	
+	/**
+	 * Increase the downloaded size. The observers are notified by the
+	 * progress ticker, not on every call.
+	 */
+	protected void downloaded(int value) {
+		mDownloaded.add(value);
+		if (mProgressTicker == null)
+			publishProgress();
+	}
+	
+	/**
+	 * Notify the observers with the bytes downloaded since the last call,
+	 * if there are any
+	 */
+	protected synchronized void publishProgress() {
+		long downloaded = mDownloaded.sum();
+		long delta = downloaded - mPublishedDownloaded;
+		if (delta != 0) {
+			mPublishedDownloaded = downloaded;
+			if (mProgressTicker != null)
+				mProgressTicker.dispatch(this, Long.valueOf(delta));
+			else
+				notifyChanged(Long.valueOf(delta));
+		}
+	}
+	
+	/**
+	 * Get the result of the probe of the URL: the one cached for it, or a
+	 * new one which is added to the cache. If the content cache has the
+	 * file, the probe asks the server whether it has changed since.
+	 * @throws IOException
+	 */
+	protected ProbeCache.Probe getProbe() throws IOException {
+		ProbeCache cache = DownloadManager.getInstance().getProbeCache();
+		ContentCache contentCache = DownloadManager.getInstance().getContentCache();
+		// only a download which has not started can be restored from the content cache
+		mCachedContent = (contentCache != null && mFileSize == -1) ? contentCache.get(mURL) : null;
+		
+		ProbeCache.Probe probe = cache.get(mURL);
+		if (probe != null && (mCachedContent == null || mCachedContent.matches(probe))) {
+			System.out.println("Probe cached: " + mURL);
+			return probe;
+		}
+		
+		if (mCachedContent == null) {
+			probe = probe(null, null);
+		} else {
+			probe = probe(mCachedContent.eTag, mCachedContent.lastModified);
+		}
+		if (probe.isNotModified) {
+			// the file is the cached one; whether ranges are supported is not known
+			probe.fileSize = mCachedContent.fileSize;
+			probe.eTag = mCachedContent.eTag;
+			probe.lastModified = mCachedContent.lastModified;
+		} else {
+			cache.put(mURL, probe);
+		}
+		return probe;
+	}
+	
+	/**
+	 * Request the first byte of the file to learn its size, its entity tag
+	 * and whether the server sends ranges of it, without its body
+	 * @param eTag sent in If-None-Match, null if none
+	 * @param lastModified sent in If-Modified-Since, null if none
+	 * @throws IOException also if the response status is neither in the 200 range nor 304
+	 */
+	protected ProbeCache.Probe probe(String eTag, String lastModified) throws IOException {
+		throw new IOException("Probing is not supported");
+	}
+	
+	/**
+	 * Put the content cached for the URL into the output file and complete the download
+	 * @return false if the content is no longer cached or does not have the expected checksum
+	 * @throws IOException
+	 */
+	private boolean restoreCachedContent() throws IOException {
+		ContentCache contentCache = DownloadManager.getInstance().getContentCache();
+		String file = mOutputFolder + mFileName;
+		if (!contentCache.restore(mCachedContent, file))
+			return false;
+		
+		if (mIntegrityCheck != null && !mIntegrityCheck.matches(mIntegrityCheck.computeFile(file))) {
+			System.out.println("Cached content does not match " + mIntegrityCheck);
+			contentCache.remove(mCachedContent.url);
+			new File(file).delete();
+			return false;
+		}
+		
+		System.out.println("Restored from cache: " + mURL);
+		mFileSize = mCachedContent.fileSize;
+		mDownloaded.add(mFileSize);
+		setState(COMPLETED);
+		return true;
+	}
+	
+	/**
+	 * Add the downloaded file to the content cache, if there is one and the
+	 * server sent what to ask whether it has changed with
+	 */
+	private void cacheContent(ProbeCache.Probe probe) {
+		ContentCache contentCache = DownloadManager.getInstance().getContentCache();
+		if (contentCache == null || (probe.eTag == null && probe.lastModified == null))
+			return;
+		
+		String file = mOutputFolder + mFileName;
+		try {
+			// a verified SHA-256 need not be computed again
+			String hash;
+			if (mIntegrityCheck != null && mIntegrityCheck.getAlgorithm().equals(IntegrityCheck.SHA256))
+				hash = mIntegrityCheck.getExpected();
+			else
+				hash = new IntegrityCheck(IntegrityCheck.SHA256, "").computeFile(file);
+			contentCache.put(mURL, probe.eTag, probe.lastModified, file, hash);
+		} catch (IOException e) {
+			System.out.println("Cannot cache " + mURL + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Get whether the server sends ranges of the file
+	 */
+	public boolean isRangeSupported() {
+		return mIsRangeSupported;
+	}
+	
+	/**
+	 * Download the file once the probe gave its size and entity tag: check
+	 * the size against the one known before, validate the mirrors, download
+	 * the segments and verify the file
+	 * @param probe
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	protected void downloadFile(ProbeCache.Probe probe) throws InterruptedException, IOException {
+		if (mCachedContent != null && (probe.isNotModified || mCachedContent.matches(probe))) {
+			if (restoreCachedContent())
+				return;
+			// the cache entry is gone, request the file itself
+			probe = getProbe();
+		}
+		
+		long contentLength = probe.fileSize;
+        // Check for valid content length.
+        if (contentLength < 1) {
+            error();
+        }
+		
+        if (mFileSize == -1) {
+        	mFileSize = contentLength;
+        	stateChanged();
+        	System.out.println("File size: " + mFileSize);
+        } else if (mFileSize != contentLength) {
+        	// the file has changed since the download was started
+        	DownloadManager.getInstance().getProbeCache().remove(mURL);
+        	error();
+        }
+           
+        // if the state is DOWNLOADING (no error) -> start downloading
+        if (getState() == DOWNLOADING) {
+        	mSources.get(0).setValidated(probe.eTag);
+        	validateMirrors();
+        	
+        	mIsRangeSupported = probe.isRangeSupported;
+        	if (!mIsRangeSupported) {
+        		System.out.println("Ranges not supported, downloading with one connection");
+        		// the completed ranges cannot be kept without a range to continue from
+        		if (mDownloaded.sum() > 0 && mListDownloadThread.size() != 1)
+        			restart();
+        	}
+        	
+        	// check whether we have list of download threads or not, if not -> init download.
+        	// A journal without gaps restores no segments but its downloaded size.
+        	if (mListDownloadThread.size() == 0 && mDownloaded.sum() == 0) {
+        		// a file left at the path may be linked to the content cache, so write a new one
+        		Files.deleteIfExists(Paths.get(mOutputFolder + mFileName));
+        		initSegments();
+        	}
+        	
+        	// download the unfinished segments, splitting the slow ones when connections are idle
+        	downloadSegments();
+			
+			// check the current state again
+			if (getState() == DOWNLOADING && isAllSegmentsFinished()) {
+				if (verify()) {
+					cacheContent(probe);
+					setState(COMPLETED);
+				} else {
+					error();
+				}
+			}
+        }
+	}
+	
+	/**
+	 * Check that the mirrors serve the same file as the URL. The mirrors
+	 * which do not, or cannot be reached, are dropped.
+	 */
+	protected void validateMirrors() {
+		for (int i=1; i<mSources.size(); ++i) {
+			DownloadSource source = mSources.get(i);
+			if (source.isValidated() || source.isDropped())
+				continue;
+			
+			try {
+				validateMirror(source);
+			} catch (IOException e) {
+				rejectMirror(source, e.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Request the headers of the file from a mirror and pass them to
+	 * checkMirror(). Downloaders without mirrors reject them.
+	 * @throws IOException
+	 */
+	protected void validateMirror(DownloadSource source) throws IOException {
+		throw new IOException("Mirrors are not supported");
+	}
+	
+	/**
+	 * Validate a mirror if it sends the same size and, if the URL sent one,
+	 * the same entity tag. Otherwise the mirror is dropped.
+	 * @param source
+	 * @param responseCode
+	 * @param contentLength
+	 * @param eTag null if none
+	 */
+	protected void checkMirror(DownloadSource source, int responseCode, long contentLength, String eTag) {
+		String expectedETag = mSources.get(0).getETag();
+		if (responseCode / 100 != 2) {
+			rejectMirror(source, "HTTP status " + responseCode);
+		} else if (contentLength != mFileSize) {
+			rejectMirror(source, "size " + contentLength);
+		} else if (expectedETag != null && !expectedETag.equals(eTag)) {
+			rejectMirror(source, "ETag " + eTag);
+		} else {
+			source.setValidated(eTag);
+			System.out.println("Mirror: " + source);
+		}
+	}
+	
+	private void rejectMirror(DownloadSource source, String reason) {
+		System.out.println("Drop source " + source + ": " + reason);
+		source.setDropped();
+	}
+	
+	/**
+	 * Split the file into segments, each downloaded by one download thread.
+	 * The segments are smaller than the number of connections would need so
+	 * that a connection finishing early can pick up the remaining ones.
+	 */
+	protected void initSegments() {
+		System.out.println("Segment size: " + getSegmentSize());
+		addSegments(0, mFileSize - 1);
+	}
+	
+	/**
+	 * Get the downloading size for each segment
+	 */
+	protected long getSegmentSize() {
+		if (mFileSize <= MIN_DOWNLOAD_SIZE || !mIsRangeSupported)
+			return mFileSize;
+		
+		long segmentSize = mFileSize / (mNumConnections * SEGMENTS_PER_CONNECTION);
+		return Math.max(MIN_DOWNLOAD_SIZE, (segmentSize / BLOCK_SIZE) * BLOCK_SIZE);
+	}
+	
+	/**
+	 * Add the segments to download the given range of the file
+	 * @param startByte
+	 * @param endByte inclusive
+	 */
+	protected void addSegments(long startByte, long endByte) {
+		long segmentSize = getSegmentSize();
+		synchronized (mListDownloadThread) {
+			for (long first = startByte; first <= endByte; first += segmentSize) {
+				long last = Math.min(first + segmentSize - 1, endByte);
+				mListDownloadThread.add(createDownloadThread(mListDownloadThread.size() + 1, first, last));
+			}
+		}
+	}
+	
+	/**
+	 * Restore the segments from the completed ranges of a resume journal
+	 * @param fileSize
+	 * @param completed list of {start, end} byte ranges, end inclusive
+	 */
+	protected void restoreSegments(long fileSize, List<long[]> completed) {
+		mFileSize = fileSize;
+		
+		// download the gaps between the completed ranges
+		long startByte = 0;
+		for (int i=0; i<completed.size(); ++i) {
+			long[] range = completed.get(i);
+			if (range[0] > startByte)
+				addSegments(startByte, range[0] - 1);
+			mDownloaded.add(range[1] - range[0] + 1);
+			startByte = range[1] + 1;
+		}
+		if (startByte < mFileSize)
+			addSegments(startByte, mFileSize - 1);
+		
+		mJournalDownloaded = mDownloaded.sum();
+		publishProgress();
 	}
 	
+	/**
+	 * Get the ranges of the file which have been written
+	 * @return list of {start, end} byte ranges, end inclusive, in order
+	 */
+	protected List<long[]> getCompletedRanges() {
+		ArrayList<long[]> missing = new ArrayList<long[]>();
+		synchronized (mListDownloadThread) {
+			for (int i=0; i<mListDownloadThread.size(); ++i) {
+				DownloadThread aThread = mListDownloadThread.get(i);
+				long endByte = aThread.mEndByte;
+				long startByte = aThread.mStartByte;
+				if (startByte <= endByte)
+					missing.add(new long[] {startByte, endByte});
+			}
+		}
+		Collections.sort(missing, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		
+		ArrayList<long[]> completed = new ArrayList<long[]>();
+		long startByte = 0;
+		for (int i=0; i<missing.size(); ++i) {
+			long[] range = missing.get(i);
+			if (range[0] > startByte)
+				completed.add(new long[] {startByte, range[0] - 1});
+			startByte = Math.max(startByte, range[1] + 1);
+		}
+		if (startByte < mFileSize)
+			completed.add(new long[] {startByte, mFileSize - 1});
+		return completed;
+	}
+	
+	/**
+	 * Get the length of the part of the file which is written without gaps
+	 * from its start, which ends at the first byte of the first unfinished
+	 * segment. With a chunk manifest it ends at a block boundary, as only the
+	 * whole blocks before it have been verified. The last bytes of the file
+	 * are left out until the download is completed, so a reader cannot reach
+	 * the end of a file which may still fail verification. It moves
+	 * backwards when the file is downloaded again, e.g. after a checksum
+	 * mismatch.
+	 * @return the number of bytes, the file size once the download is completed
+	 */
+	public long getCompletedPrefix() {
+		if (getState() == COMPLETED)
+			return mFileSize;
+		
+		long prefix = mFileSize;
+		synchronized (mListDownloadThread) {
+			// not started, started over or being verified
+			if (mListDownloadThread.isEmpty())
+				return 0;
+			for (int i=0; i<mListDownloadThread.size(); ++i) {
+				DownloadThread aThread = mListDownloadThread.get(i);
+				long endByte = aThread.mEndByte;
+				long startByte = aThread.mStartByte;
+				if (startByte <= endByte)
+					prefix = Math.min(prefix, startByte);
+			}
+		}
+		
+		ChunkManifest manifest = mChunkManifest;
+		if (manifest != null && prefix < mFileSize)
+			prefix -= prefix % manifest.getBlockSize();
+		return Math.max(Math.min(prefix, mFileSize - PREFIX_HOLD_BACK), 0);
+	}
+	
+	/**
+	 * Open a stream reading the file while it is downloaded, which returns
+	 * the bytes of the completed prefix as it grows and ends once the
+	 * download is completed
+	 * @see #getCompletedPrefix()
+	 */
+	public InputStream openCompletedStream() {
+		return new CompletedPrefixStream(this, mOutputFolder + mFileName);
+	}
+	
+	/**
+	 * Record the completed ranges in the resume journal if the download has
+	 * progressed. The output file is synced first so the journal never
+	 * claims bytes which are not on disk yet.
+	 * @throws IOException
+	 */
+	public void saveJournal() throws IOException {
+		long downloaded = mDownloaded.sum();
+		if (downloaded == mJournalDownloaded || mListDownloadThread.isEmpty())
+			return;
+		
+		List<long[]> completed = getCompletedRanges();
+		RandomAccessFile raf = new RandomAccessFile(mOutputFolder + mFileName, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+		
+		mJournal.write(mURL, getMirrorURLs(), mFileSize, mIntegrityCheck, completed);
+		mJournalDownloaded = downloaded;
+	}
+	
+	/**
+	 * Verify the downloaded file against the expected checksum. CRC32 is
+	 * combined from the checksums the segments computed while writing, if
+	 * they cover the whole file; otherwise the file is read once. On a
+	 * mismatch the file is reset to be downloaded again.
+	 * @return true if the file is valid or there is nothing to verify
+	 * @throws IOException
+	 */
+	protected boolean verify() throws IOException {
+		if (mIntegrityCheck == null)
+			return true;
+		
+		String actual = null;
+		if (mIntegrityCheck.isCombinable())
+			actual = combineSegmentChecksums();
+		if (actual == null)
+			actual = mIntegrityCheck.computeFile(mOutputFolder + mFileName);
+		
+		if (mIntegrityCheck.matches(actual))
+			return true;
+		
+		// a checksum of the whole file cannot tell where it is corrupt
+		System.out.println("Checksum mismatch: " + actual + ", expected " + mIntegrityCheck.getExpected());
+		ArrayList<long[]> corrupt = new ArrayList<long[]>();
+		corrupt.add(new long[] {0, mFileSize - 1});
+		mCorruptRanges = Collections.synchronizedList(corrupt);
+		mChunkVerifier = null;
+		
+		synchronized (mListDownloadThread) {
+			mListDownloadThread.clear();
+		}
+		mDownloaded.reset();
+		mJournal.write(mURL, getMirrorURLs(), mFileSize, mIntegrityCheck, new ArrayList<long[]>());
+		mJournalDownloaded = 0;
+		return false;
+	}
+	
+	/**
+	 * Forget the completed ranges to download the file again from its start
+	 * @throws IOException
+	 */
+	private void restart() throws IOException {
+		System.out.println("Restart " + mFileName);
+		mChunkVerifier = null;
+		synchronized (mListDownloadThread) {
+			mListDownloadThread.clear();
+		}
+		mDownloaded.reset();
+		mJournal.write(mURL, getMirrorURLs(), mFileSize, mIntegrityCheck, new ArrayList<long[]>());
+		mJournalDownloaded = 0;
+		publishProgress();
+	}
+	
+	/**
+	 * Combine the CRC32 of the segments in file order
+	 * @return the checksum in hex, null if the segments do not cover the
+	 * whole file, e.g. after resuming from a journal
+	 */
+	private String combineSegmentChecksums() {
+		ArrayList<DownloadThread> segments = new ArrayList<DownloadThread>(mListDownloadThread);
+		Collections.sort(segments, new Comparator<DownloadThread>() {
+			public int compare(DownloadThread a, DownloadThread b) {
+				return Long.compare(a.mFirstByte, b.mFirstByte);
+			}
+		});
+		
+		long crc = 0;
+		long nextByte = 0;
+		for (int i=0; i<segments.size(); ++i) {
+			DownloadThread aThread = segments.get(i);
+			if (aThread.mChecksum == null || aThread.mFirstByte != nextByte || !aThread.isFinished())
+				return null;
+			
+			long length = aThread.mEndByte - aThread.mFirstByte + 1;
+			crc = IntegrityCheck.combineCrc32(crc, aThread.mChecksum.getValue(), length);
+			nextByte = aThread.mEndByte + 1;
+		}
+		
+		return (nextByte == mFileSize) ? IntegrityCheck.toHex(crc) : null;
+	}
+	
+	/**
+	 * Run all unfinished segments until they are done or the download stops.
+	 * The output file is opened once and written by all segments at their
+	 * own positions.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	protected void downloadSegments() throws InterruptedException, IOException {
+		mOutputChannel = FileChannel.open(Paths.get(mOutputFolder + mFileName),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			preallocate();
+			startChunkVerifier();
+			// start with the best number of connections found for the host before;
+			// each host of the sources adds its connections, and no more than
+			// the pool gives are asked for
+			DownloadManager manager = DownloadManager.getInstance();
+			List<DownloadSource> sources = getUsableSources();
+			ArrayList<URL> urls = new ArrayList<URL>();
+			for (int i=0; i<sources.size(); ++i)
+				urls.add(sources.get(i).getURL());
+			int maxConnections = mConnectionPool.getMaxConnections(urls);
+			ConnectionTuner tuner;
+			if (!mIsRangeSupported) {
+				tuner = new ConnectionTuner(1, 1, 1);
+			} else if (manager.isAdaptiveConnections()) {
+				tuner = new ConnectionTuner(manager.getBestConnections(mURL, mNumConnections),
+						1, maxConnections);
+			} else {
+				int connections = Math.max(1, Math.min(mNumConnections, maxConnections));
+				tuner = new ConnectionTuner(connections, connections, connections);
+			}
+			
+			mScheduler = new SegmentScheduler(this, mConnectionPool, tuner);
+			mScheduler.run();
+			
+			if (manager.isAdaptiveConnections())
+				manager.setBestConnections(mURL, tuner.getBestConnections());
+		} finally {
+			mOutputChannel.close();
+		}
+	}
+	
+	/**
+	 * Create the verifier of the chunk manifest, if there is one, and count
+	 * the ranges completed before. The manifest is kept next to the journal
+	 * so a restored download is verified too.
+	 * @throws IOException if the manifest does not match the file
+	 */
+	private void startChunkVerifier() throws IOException {
+		if (mChunkManifest == null || mChunkVerifier != null)
+			return;
+		
+		if (!mChunkManifest.isValidFor(mFileSize))
+			throw new IOException("Chunk manifest does not match the file size " + mFileSize);
+		
+		mChunkManifest.write(new File(mOutputFolder + mFileName + ChunkManifest.EXTENSION));
+		ChunkVerifier verifier = new ChunkVerifier(this, mChunkManifest);
+		List<long[]> completed = getCompletedRanges();
+		for (int i=0; i<completed.size(); ++i)
+			verifier.credit(completed.get(i)[0], completed.get(i)[1]);
+		mChunkVerifier = verifier;
+	}
+	
+	/**
+	 * Download the given range again, e.g. when it failed verification
+	 * @param startByte
+	 * @param endByte inclusive
+	 */
+	protected void refetch(long startByte, long endByte) {
+		DownloadThread aThread;
+		synchronized (mListDownloadThread) {
+			aThread = createDownloadThread(mListDownloadThread.size() + 1, startByte, endByte);
+			mListDownloadThread.add(aThread);
+		}
+		mCorruptRanges.add(new long[] {startByte, endByte});
+		mMetrics.retried();
+		mDownloaded.add(-(endByte - startByte + 1));
+		mScheduler.requeue(aThread);
+	}
+	
+	/**
+	 * Bring the output file to its full size before the segments write to it,
+	 * so it is not extended by scattered writes. Mapped segments need the
+	 * file to be at least sparse allocated.
+	 * @throws IOException
+	 */
+	protected void preallocate() throws IOException {
+		long size = mOutputChannel.size();
+		if (size > mFileSize) {
+			// left over from another download
+			mOutputChannel.truncate(mFileSize);
+			return;
+		}
+		
+		if (size == mFileSize)
+			return;
+		
+		if (mAllocationMode == ALLOCATE_FULL) {
+			ByteBuffer zeros = mBufferPool.acquire();
+			try {
+				// pooled buffers are only written by the file, so clear their
+				// content once, writing it does not change it
+				zeros.clear();
+				zeros.put(new byte[zeros.capacity()]);
+				while (size < mFileSize) {
+					zeros.clear();
+					if (zeros.remaining() > mFileSize - size)
+						zeros.limit((int)(mFileSize - size));
+					size += mOutputChannel.write(zeros, size);
+				}
+			} finally {
+				mBufferPool.release(zeros);
+			}
+		} else if (mAllocationMode == ALLOCATE_SPARSE || mUseMappedSegments) {
+			// the last byte is not written yet, or the file would have its full size
+			mOutputChannel.write(ByteBuffer.wrap(new byte[1]), mFileSize - 1);
+		}
+	}
+	
+	/**
+	 * Write the whole buffer to the output file at the given position
+	 * @throws IOException
+	 */
+	protected void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += mOutputChannel.write(buffer, position);
+	}
+	
+	/**
+	 * Get whether all segments of the file have been downloaded
+	 */
+	protected boolean isAllSegmentsFinished() {
+		for (int i=0; i<mListDownloadThread.size(); ++i) {
+			if (!mListDownloadThread.get(i).isFinished())
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Create the thread to download the given range of the file
+	 */
+	protected abstract DownloadThread createDownloadThread(int threadID, long startByte, long endByte);
+	
 	/**
 	 * Set the state has changed and notify the observers
 	 */
 	protected void stateChanged() {
+		if (mProgressTicker != null)
+			mProgressTicker.dispatch(this, null);
+		else
+			notifyChanged(null);
+	}
+	
+	/**
+	 * Notify the observers now, on the calling thread
+	 * @param arg the bytes downloaded since the last notification, null if the state changed
+	 */
+	void notifyChanged(Object arg) {
 		setChanged();
-		notifyObservers();
+		notifyObservers(arg);
 	}
 	
 	/**
 	 * Thread to download part of a file
 	 */
 	protected abstract class DownloadThread implements Runnable {
+		
+		/** Delay before the first retry of a failed request (in milliseconds) */
+		public static final long RETRY_BASE_DELAY = 500;
+		
+		/** Max. delay between two retries (in milliseconds) */
+		public static final long RETRY_MAX_DELAY = 30000;
+		
 		protected int mThreadID;
 		protected URL mURL;
+		/** The source of mURL, set by the scheduler before each start */
+		protected DownloadSource mSource;
 		protected String mOutputFile;
-		protected int mStartByte;
-		protected int mEndByte;
-		protected boolean mIsFinished;
-		protected Thread mThread;
+		protected long mFirstByte;
+		protected volatile long mStartByte;
+		protected volatile long mEndByte;
+		protected volatile boolean mIsFinished;
+		/** CRC32 of the bytes written from mFirstByte, null if not needed */
+		protected CRC32 mChecksum;
+		protected SegmentMetrics mMetrics;
+		/** The thread running the segment, null if it is not running */
+		private volatile Thread mRunner;
+		/** Closes the connection of the request in progress, null if there is none */
+		private volatile Closeable mConnection;
+		/** Changed when a transfer running on another thread is given up */
+		private volatile int mTransferID;
 		
-		public DownloadThread(int threadID, URL url, String outputFile, int startByte, int endByte) {
+		public DownloadThread(int threadID, URL url, String outputFile, long startByte, long endByte) {
 			mThreadID = threadID;
 			mURL = url;
+			mSource = mSources.get(0);
 			mOutputFile = outputFile;
+			mFirstByte = startByte;
 			mStartByte = startByte;
 			mEndByte = endByte;
 			mIsFinished = false;
-			
-			download();
+			mMetrics = new SegmentMetrics(this);
+			if (mIntegrityCheck != null && mIntegrityCheck.isCombinable())
+				mChecksum = new CRC32();
 		}
 		
 		/**
@@ -207,19 +1229,463 @@ public abstract class Downloader extends Observable implements Runnable{
 		}
 		
 		/**
-		 * Start or resume the download
+		 * Get the number of bytes left to download
+		 */
+		public long getRemaining() {
+			return mEndByte - mStartByte + 1;
+		}
+		
+		/**
+		 * Get the last byte of the range
+		 */
+		public long getEndByte() {
+			return mEndByte;
+		}
+		
+		/**
+		 * Download from the given source from now on
+		 */
+		public void setSource(DownloadSource source) {
+			mSource = source;
+			mURL = source.getURL();
+		}
+		
+		/**
+		 * Get whether the segment should go on downloading: the download is
+		 * running and the source is not dropped
+		 */
+		protected boolean isRunning() {
+			return mState.get() == DOWNLOADING && !mSource.isDropped();
+		}
+		
+		/**
+		 * Set what closes the connection of the request in progress, so that
+		 * abort() can stop a read blocked on it
+		 * @param connection null when the request is over
+		 * @throws IOException if the segment stopped running before
+		 */
+		protected void setConnection(Closeable connection) throws IOException {
+			mConnection = connection;
+			// abort() may have run before the connection was set
+			if (connection != null && !isRunning()) {
+				connection.close();
+				throw new IOException("Segment stopped");
+			}
+		}
+		
+		/**
+		 * Stop the segment without waiting for it: close its connection, so
+		 * a request or a read waiting for the server fails, and wake it up if
+		 * it waits for a retry or the speed limit. Called by any thread after
+		 * the segment stopped running.
+		 */
+		void abort() {
+			Closeable connection = mConnection;
+			if (connection != null)
+				mConnectionPool.closeLater(connection);
+			Thread runner = mRunner;
+			if (runner != null)
+				LockSupport.unpark(runner);
+		}
+		
+		/**
+		 * Start or resume the download on the shared pool
 		 */
 		public void download() {
-			mThread = new Thread(this);
-			mThread.start();
+			mConnectionPool.startSegment(this);
+		}
+		
+		@Override
+		public void run() {
+			mRunner = Thread.currentThread();
+			try {
+				downloadWithRetries();
+			} finally {
+				mConnection = null;
+				mRunner = null;
+				mScheduler.segmentFinished(this);
+			}
+			System.out.println("End thread " + mThreadID);
+		}
+		
+		/**
+		 * Request the range until it is finished or the download stops. A
+		 * failed request is retried from the first byte not written yet,
+		 * after an exponential backoff with jitter, until the failure budget
+		 * of the download is used up. No request is made while the circuit
+		 * of the host is open. A source which keeps failing is dropped and
+		 * the scheduler hands the rest of the range to another one.
+		 */
+		private void downloadWithRetries() {
+			int attempt = 0;
+			while (isRunning() && !mIsFinished) {
+				long wait = mCircuitBreaker.getWaitTime(mURL);
+				if (wait > 0) {
+					sleepWhileDownloading(wait / 1000000);
+					continue;
+				}
+				
+				long startByte = mStartByte;
+				try {
+					downloadRange();
+					mCircuitBreaker.success(mURL);
+					mSource.success();
+					return;
+				} catch (IOException e) {
+					// the connection may fail because the download was stopped
+					if (!isRunning())
+						return;
+					
+					if (mStartByte > startByte) {
+						// the connection worked for a while, start over with the backoff
+						mCircuitBreaker.success(mURL);
+						mSource.success();
+						attempt = 0;
+					}
+					mCircuitBreaker.failure(mURL);
+					System.out.println("Thread " + mThreadID + " failed: " + e);
+					
+					boolean isRetryable = isRetryable(e);
+					if ((!isRetryable || mSource.failure() >= MAX_SOURCE_FAILURES)
+							&& dropSource(mSource, e.toString())) {
+						// another source may serve the range
+						return;
+					}
+					if (!isRetryable) {
+						error();
+						return;
+					}
+					if (mFailures.incrementAndGet() > DownloadManager.getInstance().getFailureBudget()) {
+						System.out.println("Failure budget used up");
+						error();
+						return;
+					}
+					
+					mMetrics.retried();
+					sleepWhileDownloading(getRetryDelay(attempt++));
+				} catch (RuntimeException e) {
+					// a bug, not the network: fail the download instead of
+					// leaving it downloading without this segment
+					System.out.println("Thread " + mThreadID + " failed: " + e);
+					e.printStackTrace();
+					error();
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * Get the delay before a retry: exponential in the number of
+		 * attempts, with "equal jitter" so the segments failing together do
+		 * not retry together
+		 * @param attempt number of retries before this one
+		 * @return the delay (in milliseconds)
+		 */
+		protected long getRetryDelay(int attempt) {
+			long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(attempt, 16));
+			return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		}
+		
+		/**
+		 * Sleep for the given time, or until the segment stops running.
+		 * abort() wakes the segment up.
+		 */
+		private void sleepWhileDownloading(long millis) {
+			long deadline = System.nanoTime() + millis * 1000000;
+			long left;
+			while (isRunning() && !Thread.currentThread().isInterrupted()
+					&& (left = deadline - System.nanoTime()) > 0)
+				LockSupport.parkNanos(left);
+		}
+		
+		/**
+		 * Get whether a request failing with the given exception may succeed
+		 * when retried. Network errors are retried by default.
+		 */
+		protected boolean isRetryable(IOException e) {
+			return true;
+		}
+		
+		/**
+		 * Download the bytes from mStartByte to mEndByte, and set the thread
+		 * finished when done. Returns early if the segment stops running.
+		 * @throws IOException if the request fails before the end of the range
+		 */
+		protected abstract void downloadRange() throws IOException;
+		
+		/**
+		 * Read the range from the channel into the output file until it is
+		 * finished, the channel ends or the segment stops running
+		 * @throws IOException
+		 */
+		protected void transfer(ReadableByteChannel in) throws IOException {
+			transfer(in, mTransferID);
+		}
+		
+		private void transfer(ReadableByteChannel in, int transferID) throws IOException {
+			if (mUseMappedSegments)
+				transferMapped(in, transferID);
+			else
+				transferBuffered(in, transferID);
+		}
+		
+		/**
+		 * Check the range of a response, transfer it and close it, like
+		 * checkRange() and transfer(), on another thread of the pool. Closing a response of
+		 * an HttpURLConnection waits for a read in progress on it, so abort()
+		 * cannot wake up a thread reading from a server which stopped sending.
+		 * Here it wakes up this thread, which gives the transfer up: its read
+		 * only blocks the other thread until the read timeout, and the bytes
+		 * it returns are not counted in the segment.
+		 * @throws IOException if the transfer fails, or the segment stops
+		 * running before its end
+		 */
+		protected void transferOnPool(final int responseCode, final InputStream in) throws IOException {
+			final int transferID = mTransferID;
+			final Thread waiting = Thread.currentThread();
+			FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+				public Void call() throws IOException {
+					// closed here, as closing it waits for the read in progress
+					try {
+						checkRange(responseCode, in);
+						transfer(Channels.newChannel(in), transferID);
+					} finally {
+						in.close();
+					}
+					return null;
+				}
+			}) {
+				@Override
+				protected void done() {
+					LockSupport.unpark(waiting);
+				}
+			};
+			mConnectionPool.startTransfer(task);
+			
+			while (!task.isDone() && isRunning())
+				LockSupport.park(this);
+			if (!task.isDone()) {
+				giveUpTransfer();
+				throw new IOException("Segment stopped");
+			}
+			
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException)cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				if (cause instanceof Error)
+					throw (Error)cause;
+				throw new IOException(cause);
+			} catch (InterruptedException e) {
+				// not waiting, the task is done
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * Check that a response to the range request of the segment starts
+		 * at its start byte. A server not sending ranges sends the file from
+		 * its start, whose bytes before the segment are skipped if the
+		 * download has only this segment. Otherwise each segment would read
+		 * the file from its start, so the response is rejected.
+		 * @param responseCode a status in the 200 range
+		 * @param in the body of the response
+		 * @throws IOException
+		 */
+		protected void checkRange(int responseCode, InputStream in) throws IOException {
+			if (responseCode == HttpURLConnection.HTTP_PARTIAL || mStartByte == 0)
+				return;
+			
+			if (mIsRangeSupported) {
+				// the probe was wrong or is out of date
+				System.out.println("Thread " + mThreadID + ": range ignored by " + mURL.getHost());
+				DownloadManager.getInstance().getProbeCache().remove(mURL);
+				throw new HttpDownloader.StatusException(responseCode);
+			}
+			
+			System.out.println("Thread " + mThreadID + " skips " + mStartByte + " bytes");
+			long left = mStartByte;
+			while (left > 0 && isRunning()) {
+				long skipped = in.skip(left);
+				if (skipped <= 0) {
+					if (in.read() == -1)
+						throw new EOFException("Connection closed at byte " + (mStartByte - left));
+					skipped = 1;
+				}
+				left -= skipped;
+			}
+		}
+		
+		/**
+		 * Read into a pooled buffer and write it to the output channel
+		 */
+		private void transferBuffered(ReadableByteChannel in, int transferID) throws IOException {
+			ByteBuffer buffer = mBufferPool.acquire();
+			try {
+				int numRead;
+				while (isRunning() && (mStartByte <= mEndByte)) {
+					// the bytes read are the ones at the start byte when the read starts
+					long position = getPosition(transferID);
+					if (position == -1)
+						break;
+					
+					// do not read past the end of the range
+					buffer.clear();
+					if (buffer.capacity() > mEndByte - position + 1)
+						buffer.limit((int)(mEndByte - position + 1));
+					
+					numRead = in.read(buffer);
+					if (numRead == -1)
+						break;
+					
+					// the end byte moves back when the range is split
+					numRead = (int)Math.min(numRead, mEndByte - position + 1);
+					buffer.flip();
+					buffer.limit(numRead);
+					// write at the position in the shared output channel; a
+					// transfer given up since writes the bytes already there
+					write(buffer, position);
+					// increase the startByte for resume later
+					if (!advance(transferID, numRead))
+						break;
+					if (mChecksum != null) {
+						buffer.position(0);
+						mChecksum.update(buffer);
+					}
+					if (mChunkVerifier != null)
+						mChunkVerifier.written(position, numRead);
+					// increase the downloaded size
+					downloaded(numRead);
+					mMetrics.read(numRead);
+					mSource.read(numRead);
+					throttle(numRead);
+				}
+			} finally {
+				mBufferPool.release(buffer);
+			}
+		}
+		
+		/**
+		 * Read straight into a memory-mapped window of the output file, so
+		 * there is no write call at all. Each read is limited to the buffer
+		 * size, like in transferBuffered(), so it never passes a split.
+		 */
+		private void transferMapped(ReadableByteChannel in, int transferID) throws IOException {
+			int readSize = mBufferPool.getBufferSize();
+			MappedByteBuffer window = null;
+			long windowStart = 0;
+			
+			int numRead;
+			while (isRunning() && (mStartByte <= mEndByte)) {
+				// the bytes read are the ones at the start byte when the read starts
+				long position = getPosition(transferID);
+				if (position == -1)
+					break;
+				long remaining = mEndByte - position + 1;
+				
+				// map the next window when the current one is used up
+				if (window == null || position >= windowStart + window.capacity()) {
+					windowStart = position;
+					long windowSize = Math.min(MAP_WINDOW_SIZE, remaining);
+					window = mOutputChannel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowSize);
+				}
+				
+				int offset = (int)(position - windowStart);
+				window.limit((int)Math.min(window.capacity(), offset + Math.min(readSize, remaining)));
+				window.position(offset);
+				
+				numRead = in.read(window);
+				if (numRead == -1)
+					break;
+				
+				// the end byte moves back when the range is split
+				numRead = (int)Math.min(numRead, mEndByte - position + 1);
+				if (!advance(transferID, numRead))
+					break;
+				if (mChecksum != null) {
+					window.limit(offset + numRead);
+					window.position(offset);
+					mChecksum.update(window);
+				}
+				if (mChunkVerifier != null)
+					mChunkVerifier.written(position, numRead);
+				downloaded(numRead);
+				mMetrics.read(numRead);
+				mSource.read(numRead);
+				throttle(numRead);
+			}
+		}
+		
+		/**
+		 * Wait until the bytes just read fit in the download's and the global
+		 * speed limits
+		 */
+		protected void throttle(int value) {
+			mSpeedLimit.acquire(value);
+			mGlobalSpeedLimit.acquire(value);
+		}
+		
+		/**
+		 * Get the start byte for the next read of a transfer
+		 * @return -1 if the transfer was given up
+		 */
+		private synchronized long getPosition(int transferID) {
+			return (transferID == mTransferID) ? mStartByte : -1;
+		}
+		
+		/**
+		 * Increase the startByte after the data of a transfer has been written
+		 * @return false if the transfer was given up, the startByte is not changed
+		 */
+		private synchronized boolean advance(int transferID, int value) {
+			if (transferID != mTransferID)
+				return false;
+			
+			mStartByte += value;
+			return true;
+		}
+		
+		/**
+		 * Stop counting the bytes of the transfer running on another thread
+		 */
+		private synchronized void giveUpTransfer() {
+			mTransferID++;
 		}
 		
 		/**
-		 * Waiting for the thread to finish
-		 * @throws InterruptedException
+		 * Give away the second half of the remaining range. The range is only
+		 * split when both halves are at least minSize bytes, which must be more
+		 * than a buffer so the write in progress never passes the new end.
+		 * @param minSize
+		 * @return the first byte given away, -1 if the range is too small
 		 */
-		public void waitFinish() throws InterruptedException {
-			mThread.join();			
+		protected synchronized long split(int minSize) {
+			long remaining = getRemaining();
+			if (remaining < minSize * 2)
+				return -1;
+			
+			long splitByte = mStartByte + ((remaining / 2) / BLOCK_SIZE) * BLOCK_SIZE;
+			mEndByte = splitByte - 1;
+			return splitByte;
+		}
+		
+		/**
+		 * Give away the remaining range but its first minSize bytes, so the
+		 * segment finishes soon
+		 * @param minSize
+		 * @return the first byte given away, -1 if the range is too small
+		 */
+		protected synchronized long splitRest(int minSize) {
+			if (getRemaining() < minSize * 2)
+				return -1;
+			
+			long splitByte = mStartByte + ((minSize + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+			mEndByte = splitByte - 1;
+			return splitByte;
 		}
 		
 	}
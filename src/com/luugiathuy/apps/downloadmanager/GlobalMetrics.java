@@ -0,0 +1,131 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+/**
+ * Metrics of all downloads of the DownloadManager, summed up from the
+ * metrics of each download when they are read
+ */
+public class GlobalMetrics implements GlobalMetricsMXBean {
+	
+	// Member variables
+	private DownloadManager mManager;
+	
+	public GlobalMetrics(DownloadManager manager) {
+		mManager = manager;
+	}
+	
+	private Downloader[] getDownloadArray() {
+		synchronized (mManager.getDownloadList()) {
+			return mManager.getDownloadList().toArray(new Downloader[0]);
+		}
+	}
+	
+	/**
+	 * Get the number of downloads in the list
+	 */
+	public int getDownloads() {
+		return getDownloadArray().length;
+	}
+	
+	/**
+	 * Get the number of downloads in DOWNLOADING state
+	 */
+	public int getActiveDownloads() {
+		Downloader[] downloads = getDownloadArray();
+		int count = 0;
+		for (int i=0; i<downloads.length; ++i) {
+			if (downloads[i].getState() == Downloader.DOWNLOADING)
+				++count;
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the number of downloads waiting to start
+	 */
+	public int getQueuedDownloads() {
+		return mManager.getQueuedDownloads().size();
+	}
+	
+	/**
+	 * Get the bytes downloaded by all downloads in the list
+	 */
+	public long getDownloaded() {
+		Downloader[] downloads = getDownloadArray();
+		long total = 0;
+		for (int i=0; i<downloads.length; ++i)
+			total += downloads[i].getMetrics().getDownloaded();
+		return total;
+	}
+	
+	/**
+	 * Get the speed of all downloads over the last sampling interval (in bytes per second)
+	 */
+	public double getBytesPerSecond() {
+		Downloader[] downloads = getDownloadArray();
+		double total = 0;
+		for (int i=0; i<downloads.length; ++i)
+			total += downloads[i].getMetrics().getBytesPerSecond();
+		return total;
+	}
+	
+	/**
+	 * Get the moving average of the speed of all downloads (in bytes per second)
+	 */
+	public double getAverageBytesPerSecond() {
+		Downloader[] downloads = getDownloadArray();
+		double total = 0;
+		for (int i=0; i<downloads.length; ++i) {
+			// the average of a finished download decays slowly, it no longer counts
+			if (downloads[i].getState() == Downloader.DOWNLOADING)
+				total += downloads[i].getMetrics().getAverageBytesPerSecond();
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the number of retries of all downloads
+	 */
+	public int getRetries() {
+		Downloader[] downloads = getDownloadArray();
+		int total = 0;
+		for (int i=0; i<downloads.length; ++i)
+			total += downloads[i].getMetrics().getRetries();
+		return total;
+	}
+	
+	/**
+	 * Get the stall time of all downloads (in milliseconds)
+	 */
+	public double getStallTime() {
+		Downloader[] downloads = getDownloadArray();
+		double total = 0;
+		for (int i=0; i<downloads.length; ++i)
+			total += downloads[i].getMetrics().getStallTime();
+		return total;
+	}
+}
@@ -25,107 +25,299 @@ OTHER DEALINGS IN THE SOFTWARE.
 
 package com.luugiathuy.apps.downloadmanager;
 
-import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Downloader over HTTP. Servers speaking HTTP/2 get the segments as
+ * streams multiplexed over the connection of the shared HttpClient, so the
+ * file costs one TCP and TLS handshake; other servers get a connection per
+ * segment. Which one a host speaks is learnt from the probe of the first
+ * download from it, on the thread running the download.
+ */
 public class HttpDownloader extends Downloader{
 	
+	/** Timeout to open a connection (in milliseconds) */
+	private static final int CONNECT_TIMEOUT = 10000;
+	
+	/** Timeout of a read on an open connection (in milliseconds) */
+	private static final int READ_TIMEOUT = 30000;
+	
+	/** Timeout until the response headers of an HTTP/2 request are received (in milliseconds) */
+	private static final int RESPONSE_TIMEOUT = 30000;
+	
+	private static final int TOO_MANY_REQUESTS = 429;
+	
+	// Member variables
+	/** Client of the HTTP/2 streams, null if the server is downloaded from over HTTP/1.1. Set by each run. */
+	private volatile HttpClient mClient;
+	
 	public HttpDownloader(URL url, String outputFolder, int numConnections) {
+		this(url, outputFolder, numConnections, null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param url
+	 * @param outputFolder
+	 * @param numConnections
+	 * @param integrityCheck expected checksum of the file, null to not verify it
+	 */
+	public HttpDownloader(URL url, String outputFolder, int numConnections, IntegrityCheck integrityCheck) {
+		this(url, outputFolder, numConnections, integrityCheck, (ChunkManifest)null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param url
+	 * @param outputFolder
+	 * @param numConnections
+	 * @param integrityCheck expected checksum of the file, null to not verify it
+	 * @param chunkManifest hashes of the blocks of the file, null to not verify them
+	 */
+	public HttpDownloader(URL url, String outputFolder, int numConnections, IntegrityCheck integrityCheck,
+			ChunkManifest chunkManifest) {
 		super(url, outputFolder, numConnections);
-		download();
+		mIntegrityCheck = integrityCheck;
+		mChunkManifest = chunkManifest;
 	}
 	
-	private void error() {
-		System.out.println("ERROR");
-		setState(ERROR);
+	/**
+	 * Constructor to resume a download from its journal
+	 * @param url
+	 * @param outputFolder
+	 * @param numConnections
+	 * @param integrityCheck expected checksum of the file, null to not verify it
+	 * @param chunkManifest hashes of the blocks of the file, null to not verify them
+	 * @param fileSize
+	 * @param completed the completed byte ranges
+	 */
+	public HttpDownloader(URL url, String outputFolder, int numConnections, IntegrityCheck integrityCheck,
+			ChunkManifest chunkManifest, long fileSize, List<long[]> completed) {
+		super(url, outputFolder, numConnections);
+		mIntegrityCheck = integrityCheck;
+		mChunkManifest = chunkManifest;
+		// no gaps left: the application stopped before deleting the journal,
+		// the file is verified when the download runs
+		restoreSegments(fileSize, completed);
 	}
 	
 	@Override
 	public void run() {
-		HttpURLConnection conn = null;
 		try {
-			// Open connection to URL
-			conn = (HttpURLConnection)mURL.openConnection();
-			conn.setConnectTimeout(10000);
-			
-			// Connect to server
-			conn.connect();
+			// a host not known yet is asked by the probe
+			DownloadManager manager = DownloadManager.getInstance();
+			mClient = Boolean.TRUE.equals(manager.getHttp2(mURL)) ? manager.getHttpClient() : null;
 			
-			// Make sure the response code is in the 200 range.
-            if (conn.getResponseCode() / 100 != 2) {
-                error();
-            }
-            
-            // Check for valid content length.
-            int contentLength = conn.getContentLength();
-            if (contentLength < 1) {
-                error();
-            }
-			
-            if (mFileSize == -1) {
-            	mFileSize = contentLength;
-            	stateChanged();
-            	System.out.println("File size: " + mFileSize);
-            }
-               
-            // if the state is DOWNLOADING (no error) -> start downloading
-            if (mState == DOWNLOADING) {
-            	// check whether we have list of download threads or not, if not -> init download
-            	if (mListDownloadThread.size() == 0)
-            	{  
-            		if (mFileSize > MIN_DOWNLOAD_SIZE) {
-		                // downloading size for each thread
-						int partSize = Math.round(((float)mFileSize / mNumConnections) / BLOCK_SIZE) * BLOCK_SIZE;
-						System.out.println("Part size: " + partSize);
-						
-						// start/end Byte for each thread
-						int startByte = 0;
-						int endByte = partSize - 1;
-						HttpDownloadThread aThread = new HttpDownloadThread(1, mURL, mOutputFolder + mFileName, startByte, endByte);
-						mListDownloadThread.add(aThread);
-						int i = 2;
-						while (endByte < mFileSize) {
-							startByte = endByte + 1;
-							endByte += partSize;
-							aThread = new HttpDownloadThread(i, mURL, mOutputFolder + mFileName, startByte, endByte);
-							mListDownloadThread.add(aThread);
-							++i;
-						}
-            		} else
-            		{
-            			HttpDownloadThread aThread = new HttpDownloadThread(1, mURL, mOutputFolder + mFileName, 0, mFileSize);
-						mListDownloadThread.add(aThread);
-            		}
-            	} else { // resume all downloading threads
-            		for (int i=0; i<mListDownloadThread.size(); ++i) {
-            			if (!mListDownloadThread.get(i).isFinished())
-            				mListDownloadThread.get(i).download();
-            		}
-            	}
-				
-				// waiting for all threads to complete
-				for (int i=0; i<mListDownloadThread.size(); ++i) {
-					mListDownloadThread.get(i).waitFinish();
-				}
-				
-				// check the current state again
-				if (mState == DOWNLOADING) {
-					setState(COMPLETED);
-				}
-            }
+            downloadFile(getProbe());
 		} catch (Exception e) {
 			error();
+		}
+	}
+	
+	/**
+	 * Get whether the segments are streams of an HTTP/2 connection
+	 */
+	public boolean isHttp2() {
+		return mClient != null;
+	}
+	
+	@Override
+	protected ProbeCache.Probe getProbe() throws IOException {
+		// a probe cached while HTTP/2 was off does not tell what the host speaks
+		DownloadManager manager = DownloadManager.getInstance();
+		if (mClient == null && manager.isUseHttp2() && manager.getHttp2(mURL) == null)
+			manager.getProbeCache().remove(mURL);
+		return super.getProbe();
+	}
+	
+	@Override
+	protected ProbeCache.Probe probe(String eTag, String lastModified) throws IOException {
+		DownloadManager manager = DownloadManager.getInstance();
+		if (mClient == null && manager.isUseHttp2() && manager.getHttp2(mURL) == null)
+			return probeHttp2(manager.getHttpClient(), eTag, lastModified);
+		if (mClient != null)
+			return probeHttp2(mClient, eTag, lastModified);
+		
+		// Open connection to URL
+		HttpURLConnection conn = openConnection(mURL);
+		conn.setRequestProperty("Range", "bytes=0-0");
+		if (eTag != null)
+			conn.setRequestProperty("If-None-Match", eTag);
+		if (lastModified != null)
+			conn.setRequestProperty("If-Modified-Since", lastModified);
+		
+		// Connect to server
+		mMetrics.requesting();
+		conn.connect();
+		mMetrics.connected();
+		
+		// Make sure the response code is in the 200 range, or not modified.
+		int responseCode = conn.getResponseCode();
+		mMetrics.responded();
+        if (responseCode / 100 != 2 && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+        	conn.disconnect();
+            throw new StatusException(responseCode);
+        }
+        
+        ProbeCache.Probe probe = ProbeCache.createProbe(responseCode, conn.getHeaderField("Content-Range"),
+        		conn.getContentLengthLong(), conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+        if (probe.isRangeSupported || probe.isNotModified) {
+        	// read the byte, so the connection is kept alive for the first segment
+        	readToEnd(conn.getInputStream());
+        } else {
+        	// not the whole file
+        	conn.disconnect();
+        }
+        return probe;
+	}
+	
+	/**
+	 * Request the first byte of the file through the HttpClient, and learn
+	 * from the response whether the server speaks HTTP/2
+	 */
+	private ProbeCache.Probe probeHttp2(HttpClient client, String eTag, String lastModified) throws IOException {
+		// the first byte of the file, over the connection the segments will share
+		HttpRequest.Builder request = newRequest(mURL).header("Range", "bytes=0-0");
+		if (eTag != null)
+			request.header("If-None-Match", eTag);
+		if (lastModified != null)
+			request.header("If-Modified-Since", lastModified);
+		mMetrics.requesting();
+		HttpResponse<InputStream> response = send(client, request.build(), HttpResponse.BodyHandlers.ofInputStream());
+		mMetrics.responded();
+		
+		// read the byte, so an HTTP/1.1 connection is kept alive for the first
+		// segment; closing the body resets the stream if the server sends the
+		// whole file
+		int responseCode = response.statusCode();
+		if (responseCode == HttpURLConnection.HTTP_PARTIAL || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+			readToEnd(response.body());
+		else
+			response.body().close();
+		DownloadManager manager = DownloadManager.getInstance();
+		if (manager.getHttp2(mURL) == null) {
+			boolean isHttp2 = response.version() == HttpClient.Version.HTTP_2;
+			manager.setHttp2(mURL, isHttp2);
+			System.out.println(ConnectionPool.getHostKey(mURL) + (isHttp2 ? " speaks HTTP/2" : " speaks HTTP/1.1"));
+		}
+		if (response.version() == HttpClient.Version.HTTP_2)
+			mClient = client;
+		if (responseCode / 100 != 2 && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED)
+			throw new StatusException(responseCode);
+		
+		HttpHeaders headers = response.headers();
+		return ProbeCache.createProbe(responseCode, headers.firstValue("Content-Range").orElse(null),
+				headers.firstValueAsLong("Content-Length").orElse(-1), headers.firstValue("ETag").orElse(null),
+				headers.firstValue("Last-Modified").orElse(null));
+	}
+	
+	@Override
+	protected void validateMirror(DownloadSource source) throws IOException {
+		if (mClient != null) {
+			HttpResponse<Void> response = send(mClient, newRequest(source.getURL())
+					.method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+			checkMirror(source, response.statusCode(), response.headers().firstValueAsLong("Content-Length").orElse(-1),
+					response.headers().firstValue("ETag").orElse(null));
+			return;
+		}
+		
+		HttpURLConnection conn = openConnection(source.getURL());
+		try {
+			conn.setRequestMethod("HEAD");
+			int responseCode = conn.getResponseCode();
+			checkMirror(source, responseCode, conn.getContentLengthLong(), conn.getHeaderField("ETag"));
+		} catch (IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+		// the response has no body, closing it keeps the connection alive
+		readToEnd(conn.getInputStream());
+	}
+	
+	/**
+	 * Read a short response to its end and close it, so its connection is
+	 * kept alive for the next request instead of closed
+	 */
+	private static void readToEnd(InputStream in) throws IOException {
+		try {
+			while (in.read() != -1);
 		} finally {
-			if (conn != null)
-				conn.disconnect();
+			in.close();
 		}
 	}
 	
 	/**
-	 * Thread using Http protocol to download a part of file
+	 * Open a connection with the timeouts of the downloads. HTTPS connections
+	 * use the socket factory shared by all downloads, so a new connection
+	 * resumes the TLS session of the host instead of a full handshake, and
+	 * a connection whose response was read to the end is kept alive for the
+	 * next segment.
+	 */
+	static HttpURLConnection openConnection(URL url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		// a connection which stops sending fails, so it can be retried
+		conn.setReadTimeout(READ_TIMEOUT);
+		if (conn instanceof HttpsURLConnection)
+			((HttpsURLConnection)conn).setSSLSocketFactory(DownloadManager.getInstance().getSSLSocketFactory());
+		return conn;
+	}
+	
+	/**
+	 * Create an HTTP/2 request with the timeout of the downloads
+	 * @throws IOException if the URL is not a valid URI
+	 */
+	private static HttpRequest.Builder newRequest(URL url) throws IOException {
+		try {
+			return HttpRequest.newBuilder(url.toURI()).timeout(Duration.ofMillis(RESPONSE_TIMEOUT));
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid URL " + url, e);
+		}
+	}
+	
+	/**
+	 * Send an HTTP/2 request and wait for the response headers
+	 * @throws IOException also if the calling thread is interrupted
+	 */
+	private static <T> HttpResponse<T> send(HttpClient client, HttpRequest request,
+			HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+		try {
+			return client.send(request, bodyHandler);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + request.uri());
+		}
+	}
+	
+	@Override
+	protected DownloadThread createDownloadThread(int threadID, long startByte, long endByte) {
+		return new HttpDownloadThread(threadID, mURL, mOutputFolder + mFileName, startByte, endByte);
+	}
+	
+	/**
+	 * Thread using Http protocol to download a part of file. Each request
+	 * goes over HTTP/2 if the run of the download found the host speaks it,
+	 * so segments created by an earlier run, or restored from the journal,
+	 * follow the protocol of the current run.
 	 */
 	private class HttpDownloadThread extends DownloadThread {
 		
@@ -137,18 +329,31 @@ public class HttpDownloader extends Downloader{
 		 * @param startByte
 		 * @param endByte
 		 */
-		public HttpDownloadThread(int threadID, URL url, String outputFile, int startByte, int endByte) {
+		public HttpDownloadThread(int threadID, URL url, String outputFile, long startByte, long endByte) {
 			super(threadID, url, outputFile, startByte, endByte);
 		}
 
 		@Override
-		public void run() {
-			BufferedInputStream in = null;
-			RandomAccessFile raf = null;
-			
+		protected void downloadRange() throws IOException {
+			HttpClient client = mClient;
+			if (client != null)
+				downloadStream(client);
+			else
+				downloadConnection();
+		}
+		
+		/**
+		 * Request the range over a connection of its own
+		 */
+		private void downloadConnection() throws IOException {
 			try {
-				// open Http connection to URL
-				HttpURLConnection conn = (HttpURLConnection)mURL.openConnection();
+				// open Http connection to URL, reusing an idle one to the host if there is one
+				final HttpURLConnection conn = openConnection(mURL);
+				setConnection(new Closeable() {
+					public void close() {
+						conn.disconnect();
+					}
+				});
 				
 				// set the range of byte to download
 				String byteRange = mStartByte + "-" + mEndByte;
@@ -156,52 +361,128 @@ public class HttpDownloader extends Downloader{
 				System.out.println("bytes=" + byteRange);
 				
 				// connect to server
+				mMetrics.requesting();
 				conn.connect();
+				mMetrics.connected();
 				
 				// Make sure the response code is in the 200 range.
-	            if (conn.getResponseCode() / 100 != 2) {
-	                error();
+				int responseCode = conn.getResponseCode();
+				mMetrics.responded();
+	            if (responseCode / 100 != 2) {
+	            	conn.disconnect();
+	                throw new StatusException(responseCode);
 	            }
 				
-				// get the input stream
-				in = new BufferedInputStream(conn.getInputStream());
+				// read from the connection into the output file, on another
+				// thread so that abort() does not wait for a stalled read
+				transferOnPool(responseCode, conn.getInputStream());
 				
-				// open the output file and seek to the start location
-				raf = new RandomAccessFile(mOutputFile, "rw");
-				raf.seek(mStartByte);
-				
-				byte data[] = new byte[BUFFER_SIZE];
-				int numRead;
-				while((mState == DOWNLOADING) && ((numRead = in.read(data,0,BUFFER_SIZE)) != -1))
-				{
-					// write to buffer
-					raf.write(data,0,numRead);
-					// increase the startByte for resume later
-					mStartByte += numRead;
-					// increase the downloaded size
-					downloaded(numRead);
-				}
-				
-				if (mState == DOWNLOADING) {
+				if (mStartByte > mEndByte) {
 					mIsFinished = true;
+				} else if (isRunning()) {
+					throw new EOFException("Connection closed at byte " + mStartByte);
 				}
-			} catch (IOException e) {
-				error();
 			} finally {
-				if (raf != null) {
-					try {
-						raf.close();
-					} catch (IOException e) {}
+				setConnection(null);
+			}
+		}
+		
+		/**
+		 * Request the range as a stream of the connection shared by the client
+		 */
+		private void downloadStream(HttpClient client) throws IOException {
+			String byteRange = mStartByte + "-" + mEndByte;
+			HttpRequest request = newRequest(mURL).header("Range", "bytes=" + byteRange).build();
+			System.out.println("bytes=" + byteRange);
+			
+			// there is no connection of its own to measure, only the response
+			mMetrics.requesting();
+			final CompletableFuture<HttpResponse<InputStream>> future =
+					client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+			setConnection(new Closeable() {
+				public void close() {
+					future.cancel(true);
 				}
+			});
+			HttpResponse<InputStream> response = getResponse(future);
+			mMetrics.responded();
+			
+			// closing the body before its end resets the stream, not the connection
+			InputStream in = response.body();
+			setConnection(in);
+			try {
+				if (response.statusCode() / 100 != 2)
+					throw new StatusException(response.statusCode());
 				
-				if (in != null) {
-					try {
-						in.close();
-					} catch (IOException e) {}
+				checkRange(response.statusCode(), in);
+				transfer(Channels.newChannel(in));
+				
+				if (mStartByte > mEndByte) {
+					mIsFinished = true;
+				} else if (isRunning()) {
+					throw new EOFException("Stream closed at byte " + mStartByte);
 				}
+			} finally {
+				setConnection(null);
+				in.close();
 			}
-			
-			System.out.println("End thread " + mThreadID);
+		}
+		
+		/**
+		 * Wait for the response headers of a request sent by this segment
+		 * @throws IOException if the request fails or is cancelled by abort()
+		 */
+		private HttpResponse<InputStream> getResponse(CompletableFuture<HttpResponse<InputStream>> future)
+				throws IOException {
+			try {
+				return future.get();
+			} catch (CancellationException e) {
+				throw new IOException("Request cancelled");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " + mURL);
+			}
+		}
+		
+		@Override
+		protected boolean isRetryable(IOException e) {
+			return isRetryableStatus(e);
+		}
+	}
+	
+	/**
+	 * Get whether a request failing with the given exception may succeed
+	 * when retried. Client errors other than timeouts and rate limiting
+	 * fail again.
+	 */
+	static boolean isRetryableStatus(IOException e) {
+		if (!(e instanceof StatusException))
+			return true;
+		
+		int responseCode = ((StatusException)e).getResponseCode();
+		return responseCode / 100 == 5 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+				|| responseCode == TOO_MANY_REQUESTS;
+	}
+	
+	/**
+	 * Response with a status code the download cannot continue with
+	 */
+	static class StatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		private int mResponseCode;
+		
+		public StatusException(int responseCode) {
+			super("HTTP status " + responseCode);
+			mResponseCode = responseCode;
+		}
+		
+		public int getResponseCode() {
+			return mResponseCode;
 		}
 	}
 }
@@ -0,0 +1,227 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Expected checksum of a downloaded file. CRC32 checksums of consecutive
+ * ranges can be combined, so they are computed by the download threads as
+ * the bytes are written. Digests like SHA-256 or MD5 cannot, so the file is
+ * read once sequentially when the download completes.
+ */
+public class IntegrityCheck {
+	
+	// Constants for the algorithms
+	public static final String CRC32 = "CRC32";
+	public static final String MD5 = "MD5";
+	public static final String SHA256 = "SHA-256";
+	
+	/** Buffer size for reading the file back */
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+	
+	// Member variables
+	private String mAlgorithm;
+	private String mExpected;
+	
+	/**
+	 * Constructor
+	 * @param algorithm CRC32 or a MessageDigest algorithm, e.g. SHA-256 or MD5
+	 * @param expected the checksum in hex
+	 * @throws IllegalArgumentException if the algorithm is not supported
+	 */
+	public IntegrityCheck(String algorithm, String expected) {
+		mAlgorithm = algorithm.toUpperCase();
+		if (mAlgorithm.equals("SHA256"))
+			mAlgorithm = SHA256;
+		mExpected = expected.toLowerCase();
+		
+		if (!isCombinable()) {
+			try {
+				MessageDigest.getInstance(mAlgorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+			}
+		}
+	}
+	
+	/**
+	 * Parse a checksum written as algorithm:hex, e.g. sha-256:e3b0c442...
+	 * @throws IllegalArgumentException if the format or algorithm is invalid
+	 */
+	public static IntegrityCheck parse(String value) {
+		int index = value.indexOf(':');
+		if (index < 1 || index == value.length() - 1)
+			throw new IllegalArgumentException("Invalid checksum: " + value);
+		return new IntegrityCheck(value.substring(0, index), value.substring(index + 1));
+	}
+	
+	public String getAlgorithm() {
+		return mAlgorithm;
+	}
+	
+	public String getExpected() {
+		return mExpected;
+	}
+	
+	/**
+	 * Get whether checksums of consecutive ranges can be combined
+	 */
+	public boolean isCombinable() {
+		return mAlgorithm.equals(CRC32);
+	}
+	
+	/**
+	 * Get whether the computed checksum is the expected one
+	 */
+	public boolean matches(String actual) {
+		return mExpected.equals(actual);
+	}
+	
+	/**
+	 * Compute the checksum of a file, reading it sequentially
+	 * @param file
+	 * @return the checksum in hex
+	 * @throws IOException
+	 */
+	public String computeFile(String file) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+			CRC32 crc = null;
+			MessageDigest digest = null;
+			if (isCombinable())
+				crc = new CRC32();
+			else
+				digest = MessageDigest.getInstance(mAlgorithm);
+			
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				if (crc != null)
+					crc.update(buffer);
+				else
+					digest.update(buffer);
+				buffer.clear();
+			}
+			
+			return (crc != null) ? toHex(crc.getValue()) : toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// checked in the constructor
+			throw new IllegalStateException(e);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return mAlgorithm + ":" + mExpected;
+	}
+	
+	/**
+	 * Format a CRC32 value as 8 hex digits
+	 */
+	public static String toHex(long crc) {
+		String hex = Long.toHexString(crc & 0xFFFFFFFFL);
+		while (hex.length() < 8)
+			hex = "0" + hex;
+		return hex;
+	}
+	
+	/**
+	 * Format a digest as hex
+	 */
+	public static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (int i=0; i<digest.length; ++i) {
+			sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(digest[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Combine the CRC32 of two consecutive ranges, like zlib's crc32_combine()
+	 * @param crc1 CRC32 of the first range
+	 * @param crc2 CRC32 of the second range
+	 * @param length2 length of the second range
+	 * @return CRC32 of both ranges together
+	 */
+	public static long combineCrc32(long crc1, long crc2, long length2) {
+		if (length2 <= 0)
+			return crc1;
+		
+		// operator for one zero bit, then squared to two and four zero bits
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		odd[0] = 0xEDB88320L;
+		long row = 1;
+		for (int n=1; n<32; ++n) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+		
+		// apply length2 zero bytes to crc1
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(even, crc1);
+			length2 >>= 1;
+			if (length2 == 0)
+				break;
+			
+			gf2MatrixSquare(odd, even);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(odd, crc1);
+			length2 >>= 1;
+		} while (length2 != 0);
+		
+		return crc1 ^ crc2;
+	}
+	
+	private static long gf2MatrixTimes(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i=0; vector != 0; ++i, vector >>>= 1) {
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		}
+		return sum;
+	}
+	
+	private static void gf2MatrixSquare(long[] square, long[] matrix) {
+		for (int n=0; n<32; ++n)
+			square[n] = gf2MatrixTimes(matrix, matrix[n]);
+	}
+}
@@ -0,0 +1,192 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP endpoint serving the metrics of the DownloadManager at /metrics in
+ * the Prometheus text format, for monitoring systems which pull them
+ */
+public class MetricsServer implements HttpHandler {
+	
+	/** Prefix of the names of the metrics */
+	private static final String PREFIX = "downloadmanager_";
+	
+	// Member variables
+	private DownloadManager mManager;
+	private HttpServer mServer;
+	
+	/**
+	 * Start serving the metrics
+	 * @param manager
+	 * @param address the address to listen on, e.g. the loopback address and a port
+	 * @throws IOException
+	 */
+	public MetricsServer(DownloadManager manager, InetSocketAddress address) throws IOException {
+		mManager = manager;
+		mServer = HttpServer.create(address, 0);
+		mServer.createContext("/metrics", this);
+		mServer.start();
+	}
+	
+	/**
+	 * Get the port the metrics are served on
+	 */
+	public int getPort() {
+		return mServer.getAddress().getPort();
+	}
+	
+	public void stop() {
+		mServer.stop(0);
+	}
+	
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		byte[] body = getMetrics().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Get the metrics of all downloads and their segments as text
+	 */
+	public String getMetrics() {
+		// the samples of each metric, which follow its help and type lines
+		LinkedHashMap<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+		GlobalMetrics global = mManager.getMetrics();
+		appendGauge(families, "downloads", "Downloads in the list", null, global.getDownloads());
+		appendGauge(families, "active_downloads", "Downloads in progress", null, global.getActiveDownloads());
+		appendGauge(families, "queued_downloads", "Downloads waiting to start", null, global.getQueuedDownloads());
+		appendGauge(families, "downloaded_bytes", "Bytes downloaded by all downloads", null, global.getDownloaded());
+		appendGauge(families, "bytes_per_second", "Current speed of all downloads", null, global.getBytesPerSecond());
+		appendGauge(families, "average_bytes_per_second", "Average speed of all downloads", null,
+				global.getAverageBytesPerSecond());
+		appendGauge(families, "retries", "Segment requests retried by all downloads", null, global.getRetries());
+		appendGauge(families, "stall_milliseconds", "Time the downloads received nothing", null, global.getStallTime());
+		
+		Downloader[] downloads;
+		synchronized (mManager.getDownloadList()) {
+			downloads = mManager.getDownloadList().toArray(new Downloader[0]);
+		}
+		for (int i=0; i<downloads.length; ++i) {
+			DownloadMetrics metrics = downloads[i].getMetrics();
+			String labels = "url=\"" + escape(metrics.getURL()) + "\"";
+			// a series for each state, so a download keeps its series as its state changes
+			String state = metrics.getState();
+			for (int s=0; s<Downloader.STATUSES.length; ++s) {
+				appendGauge(families, "download_state", "1 for the state of the download, 0 for the others",
+						labels + ",state=\"" + Downloader.STATUSES[s] + "\"", Downloader.STATUSES[s].equals(state) ? 1 : 0);
+			}
+			appendGauge(families, "download_size_bytes", "Size of the file", labels, metrics.getFileSize());
+			appendGauge(families, "download_downloaded_bytes", "Bytes of the file downloaded", labels,
+					metrics.getDownloaded());
+			appendGauge(families, "download_bytes_per_second", "Current speed of the download", labels,
+					metrics.getBytesPerSecond());
+			appendGauge(families, "download_average_bytes_per_second", "Average speed of the download", labels,
+					metrics.getAverageBytesPerSecond());
+			appendGauge(families, "download_connect_milliseconds", "Average time to connect", labels,
+					metrics.getConnectLatency());
+			appendGauge(families, "download_time_to_first_byte_milliseconds", "Average time to the first byte", labels,
+					metrics.getTimeToFirstByte());
+			appendGauge(families, "download_retries", "Segment requests retried", labels, metrics.getRetries());
+			appendGauge(families, "download_stall_milliseconds", "Time the download received nothing", labels,
+					metrics.getStallTime());
+			appendGauge(families, "download_eta_seconds", "Estimated time left", labels, metrics.getEta());
+			
+			List<SegmentMetrics> segments = metrics.getSegments();
+			for (int j=0; j<segments.size(); ++j) {
+				SegmentMetrics segment = segments.get(j);
+				String segmentLabels = labels + ",segment=\"" + segment.getId() + "\"";
+				appendGauge(families, "segment_downloaded_bytes", "Bytes of the segment downloaded", segmentLabels,
+						segment.getBytes());
+				appendGauge(families, "segment_bytes_per_second", "Current speed of the segment", segmentLabels,
+						segment.getBytesPerSecond());
+				appendGauge(families, "segment_average_bytes_per_second", "Average speed of the segment", segmentLabels,
+						segment.getAverageBytesPerSecond());
+				appendGauge(families, "segment_connect_milliseconds", "Average time to connect", segmentLabels,
+						segment.getConnectLatency());
+				appendGauge(families, "segment_time_to_first_byte_milliseconds", "Average time to the first byte",
+						segmentLabels, segment.getTimeToFirstByte());
+				appendGauge(families, "segment_retries", "Requests of the segment retried", segmentLabels,
+						segment.getRetries());
+				appendGauge(families, "segment_stall_milliseconds", "Time the segment received nothing", segmentLabels,
+						segment.getStallTime());
+				appendGauge(families, "segment_eta_seconds", "Estimated time left", segmentLabels, segment.getEta());
+			}
+		}
+		
+		StringBuilder sb = new StringBuilder(4096);
+		for (StringBuilder family : families.values())
+			sb.append(family);
+		return sb.toString();
+	}
+	
+	/**
+	 * Append a sample of a gauge, after the help and type lines of the
+	 * gauge if it is the first one
+	 */
+	private static void appendGauge(Map<String, StringBuilder> families, String name, String help, String labels,
+			double value) {
+		StringBuilder sb = families.get(name);
+		if (sb == null) {
+			sb = new StringBuilder(256);
+			sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+			sb.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+			families.put(name, sb);
+		}
+		
+		sb.append(PREFIX).append(name);
+		if (labels != null)
+			sb.append('{').append(labels).append('}');
+		sb.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			sb.append((long)value);
+		else
+			sb.append(value);
+		sb.append('\n');
+	}
+	
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
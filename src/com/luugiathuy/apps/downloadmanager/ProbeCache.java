@@ -0,0 +1,163 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers what the probe of a URL found out about the file and the
+ * server, shared by all downloads, so that downloading the URL again or
+ * resuming it within the time to live starts without a request. The probe
+ * asks for the first byte of the file: a 206 response tells that the server
+ * serves ranges, more reliably than its Accept-Ranges header.
+ */
+public class ProbeCache {
+	
+	/** Default time an entry is used (in milliseconds) */
+	public static final long DEFAULT_TTL = 300000;
+	
+	/** Max. number of entries, the oldest are removed first */
+	private static final int MAX_ENTRIES = 1000;
+	
+	// Member variables
+	private long mTTL;
+	/** The entries in the order they were added, which is the order they expire in */
+	private LinkedHashMap<String, Probe> mProbes;
+	
+	/**
+	 * Constructor
+	 * @param ttl time an entry is used (in milliseconds)
+	 */
+	public ProbeCache(long ttl) {
+		mTTL = ttl;
+		mProbes = new LinkedHashMap<String, Probe>();
+	}
+	
+	public synchronized long getTTL() {
+		return mTTL;
+	}
+	
+	/**
+	 * Set the time an entry is used, 0 to not use the cache
+	 * @param ttl in milliseconds
+	 */
+	public synchronized void setTTL(long ttl) {
+		mTTL = ttl;
+	}
+	
+	/**
+	 * Get the result of the last probe of the url
+	 * @return null if there is none or it has expired
+	 */
+	public synchronized Probe get(URL url) {
+		removeExpired();
+		return mProbes.get(url.toString());
+	}
+	
+	/**
+	 * Add the result of a probe of the url, replacing the one before
+	 */
+	public synchronized void put(URL url, Probe probe) {
+		probe.time = System.nanoTime();
+		String key = url.toString();
+		mProbes.remove(key);
+		mProbes.put(key, probe);
+		removeExpired();
+	}
+	
+	/**
+	 * Forget the probe of the url, e.g. when the file turned out to have changed
+	 */
+	public synchronized void remove(URL url) {
+		mProbes.remove(url.toString());
+	}
+	
+	private void removeExpired() {
+		long now = System.nanoTime();
+		Iterator<Probe> it = mProbes.values().iterator();
+		while (it.hasNext()) {
+			Probe probe = it.next();
+			if (mProbes.size() <= MAX_ENTRIES && now - probe.time < mTTL * 1000000)
+				break;
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Create the result of a probe from the response to a request of the
+	 * range bytes=0-0
+	 * @param responseCode a status in the 200 range, or 304 to a conditional request
+	 * @param contentRange the Content-Range header, null if none
+	 * @param contentLength the Content-Length header, -1 if none
+	 * @param eTag null if none
+	 * @param lastModified null if none
+	 */
+	public static Probe createProbe(int responseCode, String contentRange, long contentLength,
+			String eTag, String lastModified) {
+		Probe probe = new Probe();
+		probe.eTag = eTag;
+		probe.lastModified = lastModified;
+		probe.isNotModified = (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED);
+		probe.isRangeSupported = (responseCode == HttpURLConnection.HTTP_PARTIAL);
+		if (probe.isRangeSupported) {
+			// bytes 0-0/<size>, the size may be * if unknown
+			probe.fileSize = -1;
+			int slash = (contentRange == null) ? -1 : contentRange.lastIndexOf('/');
+			if (slash != -1) {
+				try {
+					probe.fileSize = Long.parseLong(contentRange.substring(slash + 1).trim());
+				} catch (NumberFormatException e) {}
+			}
+		} else if (probe.isNotModified) {
+			probe.fileSize = -1;
+		} else {
+			// the server ignored the range and sends the whole file
+			probe.fileSize = contentLength;
+		}
+		return probe;
+	}
+	
+	/**
+	 * What the probe of a URL found out
+	 */
+	public static class Probe {
+		/** Size of the file, -1 if unknown */
+		public long fileSize;
+		/** Entity tag of the file, null if none */
+		public String eTag;
+		/** Last-Modified header of the file, null if none */
+		public String lastModified;
+		/** Whether the server sends a range of the file when asked */
+		public boolean isRangeSupported;
+		/** Whether the server answered that the file has not changed since the one cached */
+		public boolean isNotModified;
+		/** When the probe was added to the cache (System.nanoTime()) */
+		long time;
+	}
+}
@@ -0,0 +1,150 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the progress of the downloads at a fixed rate. The download
+ * threads only add to their counters; this single ticker sums them up and
+ * notifies the observers of each download once per tick with the number
+ * of bytes downloaded since the last notification.
+ */
+public class ProgressTicker {
+	
+	/** Runs notifications on the calling thread */
+	public static final Executor DIRECT_EXECUTOR = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	// Member variables
+	private CopyOnWriteArrayList<Downloader> mDownloads;
+	private volatile Executor mNotificationExecutor;
+	private ScheduledExecutorService mTimer;
+	private ScheduledFuture<?> mTask;
+	private int mRate;
+	
+	/**
+	 * Constructor
+	 * @param rate number of notifications per second
+	 */
+	public ProgressTicker(int rate) {
+		mDownloads = new CopyOnWriteArrayList<Downloader>();
+		mNotificationExecutor = DIRECT_EXECUTOR;
+		mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ProgressTicker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		setRate(rate);
+	}
+	
+	/**
+	 * Get the number of notifications per second
+	 */
+	public synchronized int getRate() {
+		return mRate;
+	}
+	
+	/**
+	 * Set the number of notifications per second
+	 */
+	public synchronized void setRate(int rate) {
+		if (rate < 1)
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		
+		mRate = rate;
+		if (mTask != null)
+			mTask.cancel(false);
+		
+		long period = 1000000L / rate;
+		mTask = mTimer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, period, period, TimeUnit.MICROSECONDS);
+	}
+	
+	/**
+	 * Set the executor the observers are notified on, e.g. the event dispatch thread
+	 */
+	public void setNotificationExecutor(Executor executor) {
+		mNotificationExecutor = executor;
+	}
+	
+	/**
+	 * Start publishing the progress of a download
+	 */
+	public void register(Downloader download) {
+		download.mProgressTicker = this;
+		mDownloads.add(download);
+	}
+	
+	/**
+	 * Stop publishing the progress of a download
+	 */
+	public void unregister(Downloader download) {
+		mDownloads.remove(download);
+	}
+	
+	/**
+	 * Notify the observers of a download on the notification executor
+	 */
+	public void dispatch(final Downloader download, final Object arg) {
+		mNotificationExecutor.execute(new Runnable() {
+			public void run() {
+				download.notifyChanged(arg);
+			}
+		});
+	}
+	
+	/**
+	 * Publish the progress of all downloads which have changed, and sample
+	 * their speeds
+	 */
+	private void tick() {
+		long now = System.nanoTime();
+		for (Downloader download : mDownloads) {
+			try {
+				download.publishProgress();
+				download.mMetrics.sample(now);
+			} catch (RuntimeException e) {
+				// keep ticking for the other downloads
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+/**
+ * Speed computed from a growing byte count sampled over time: the speed over
+ * the last sampling interval, and its exponentially weighted moving average.
+ */
+public class RateMeter {
+	
+	/** Min. time between two samples (in nanoseconds), shorter ones are skipped */
+	public static final long MIN_INTERVAL = 500000000L;
+	
+	/** Time constant of the moving average (in nanoseconds) */
+	private static final double TIME_CONSTANT = 5e9;
+	
+	// Member variables
+	private long mLastTime;
+	private long mLastBytes;
+	private volatile double mRate;
+	private volatile double mAverageRate;
+	private boolean mIsStarted;
+	private boolean mHasAverage;
+	
+	public RateMeter() {
+		mIsStarted = false;
+		mHasAverage = false;
+	}
+	
+	/**
+	 * Update the speeds with the byte count at the given time
+	 * @param bytes total bytes counted so far
+	 * @param now System.nanoTime()
+	 * @return the time since the last sample (in nanoseconds), 0 if the sample was skipped
+	 */
+	public synchronized long sample(long bytes, long now) {
+		if (!mIsStarted) {
+			mIsStarted = true;
+			mLastTime = now;
+			mLastBytes = bytes;
+			return 0;
+		}
+		
+		long interval = now - mLastTime;
+		if (interval < MIN_INTERVAL)
+			return 0;
+		
+		double rate = Math.max(0, bytes - mLastBytes) * 1e9 / interval;
+		if (mHasAverage) {
+			// the weight of the new sample grows with the time it covers
+			double alpha = 1 - Math.exp(-interval / TIME_CONSTANT);
+			mAverageRate += alpha * (rate - mAverageRate);
+		} else {
+			mAverageRate = rate;
+			mHasAverage = true;
+		}
+		mRate = rate;
+		mLastTime = now;
+		mLastBytes = bytes;
+		return interval;
+	}
+	
+	/**
+	 * Get the speed over the last interval (in bytes per second)
+	 */
+	public double getRate() {
+		return mRate;
+	}
+	
+	/**
+	 * Get the moving average of the speed (in bytes per second)
+	 */
+	public double getAverageRate() {
+		return mAverageRate;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Sidecar file recording the completed byte ranges of a download so it can
+ * be resumed after the application restarts. The journal is written to a
+ * temporary file, synced and renamed over the old one, so a crash leaves
+ * either the old or the new journal, never a partial one.
+ */
+public class ResumeJournal {
+	
+	/** Extension appended to the output file name */
+	public static final String EXTENSION = ".jdm";
+	
+	// Constants for the file format
+	private static final int MAGIC = 0x4A444D33; // "JDM3"
+	/** Format without the mirrors, still read */
+	private static final int MAGIC_V2 = 0x4A444D32; // "JDM2"
+	
+	// Member variables
+	private File mFile;
+	private File mTempFile;
+	private boolean mIsDeleted;
+	
+	/**
+	 * Constructor
+	 * @param outputFile the file being downloaded
+	 */
+	public ResumeJournal(String outputFile) {
+		mFile = new File(outputFile + EXTENSION);
+		mTempFile = new File(outputFile + EXTENSION + ".tmp");
+		mIsDeleted = false;
+	}
+	
+	/**
+	 * Replace the journal with the given state. Does nothing once the journal is deleted.
+	 * @param url
+	 * @param mirrors
+	 * @param fileSize
+	 * @param integrityCheck expected checksum, may be null
+	 * @param completed list of {start, end} byte ranges, end inclusive
+	 * @throws IOException
+	 */
+	public synchronized void write(URL url, List<URL> mirrors, long fileSize, IntegrityCheck integrityCheck,
+			List<long[]> completed) throws IOException {
+		if (mIsDeleted)
+			return;
+		
+		FileOutputStream fos = new FileOutputStream(mTempFile);
+		try {
+			CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+			DataOutputStream out = new DataOutputStream(cos);
+			out.writeInt(MAGIC);
+			out.writeUTF(url.toString());
+			out.writeInt(mirrors.size());
+			for (int i=0; i<mirrors.size(); ++i)
+				out.writeUTF(mirrors.get(i).toString());
+			out.writeLong(fileSize);
+			out.writeUTF((integrityCheck == null) ? "" : integrityCheck.toString());
+			out.writeInt(completed.size());
+			for (int i=0; i<completed.size(); ++i) {
+				out.writeLong(completed.get(i)[0]);
+				out.writeLong(completed.get(i)[1]);
+			}
+			out.flush();
+			out.writeLong(cos.getChecksum().getValue());
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		
+		Files.move(mTempFile.toPath(), mFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Delete the journal, e.g. when the download is completed or cancelled
+	 */
+	public synchronized void delete() {
+		mIsDeleted = true;
+		mFile.delete();
+		mTempFile.delete();
+	}
+	
+	/**
+	 * Read a journal file
+	 * @param file
+	 * @return the state of the download
+	 * @throws IOException if the file is not a valid journal
+	 */
+	public static Entry read(File file) throws IOException {
+		CheckedInputStream cis = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), new CRC32());
+		DataInputStream in = new DataInputStream(cis);
+		try {
+			int magic = in.readInt();
+			if (magic != MAGIC && magic != MAGIC_V2)
+				throw new IOException("Not a journal file: " + file);
+			
+			Entry entry = new Entry();
+			entry.url = new URL(in.readUTF());
+			int mirrorCount = (magic == MAGIC) ? in.readInt() : 0;
+			entry.mirrors = new ArrayList<URL>(mirrorCount);
+			for (int i=0; i<mirrorCount; ++i)
+				entry.mirrors.add(new URL(in.readUTF()));
+			entry.fileSize = in.readLong();
+			String integrityCheck = in.readUTF();
+			try {
+				entry.integrityCheck = (integrityCheck.length() == 0) ? null : IntegrityCheck.parse(integrityCheck);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid checksum in journal file: " + file);
+			}
+			int count = in.readInt();
+			entry.completed = new ArrayList<long[]>(count);
+			for (int i=0; i<count; ++i) {
+				long startByte = in.readLong();
+				long endByte = in.readLong();
+				entry.completed.add(new long[] {startByte, endByte});
+			}
+			
+			long checksum = cis.getChecksum().getValue();
+			if (in.readLong() != checksum)
+				throw new IOException("Corrupt journal file: " + file);
+			
+			String name = file.getPath();
+			entry.outputFile = name.substring(0, name.length() - EXTENSION.length());
+			return entry;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * State of a download read from a journal
+	 */
+	public static class Entry {
+		public URL url;
+		public List<URL> mirrors;
+		public String outputFile;
+		public long fileSize;
+		public IntegrityCheck integrityCheck;
+		public List<long[]> completed;
+	}
+}
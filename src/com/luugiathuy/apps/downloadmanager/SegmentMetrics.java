@@ -0,0 +1,178 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+/**
+ * Metrics of one segment of a download. The counters are only written by
+ * the thread running the segment, with plain field updates and no
+ * allocation, and read by the metrics samplers and exporters.
+ */
+public class SegmentMetrics {
+	
+	/** Min. time without data for a read to count as a stall (in nanoseconds) */
+	public static final long STALL_THRESHOLD = 1000000000L;
+	
+	// Member variables
+	private Downloader.DownloadThread mThread;
+	private RateMeter mMeter;
+	private volatile long mBytes;
+	private volatile long mRequestTime;
+	private volatile long mLastRead;
+	private volatile long mConnectLatency;
+	private volatile long mTimeToFirstByte;
+	private volatile long mStallTime;
+	private volatile int mRetries;
+	
+	public SegmentMetrics(Downloader.DownloadThread thread) {
+		mThread = thread;
+		mMeter = new RateMeter();
+		mConnectLatency = -1;
+		mTimeToFirstByte = -1;
+	}
+	
+	/**
+	 * Called when the request of the segment is started
+	 */
+	public void requesting() {
+		mRequestTime = System.nanoTime();
+		mLastRead = 0;
+	}
+	
+	/**
+	 * Called when the connection to the server is open
+	 */
+	public void connected() {
+		mConnectLatency = System.nanoTime() - mRequestTime;
+	}
+	
+	/**
+	 * Called when the response headers are received
+	 */
+	public void responded() {
+		long now = System.nanoTime();
+		mTimeToFirstByte = now - mRequestTime;
+		mLastRead = now;
+	}
+	
+	/**
+	 * Called after each read with the bytes written to the file
+	 */
+	public void read(int bytes) {
+		long now = System.nanoTime();
+		long lastRead = mLastRead;
+		if (lastRead != 0 && now - lastRead >= STALL_THRESHOLD)
+			mStallTime += now - lastRead;
+		mLastRead = now;
+		mBytes += bytes;
+	}
+	
+	/**
+	 * Called when the segment is requested again after a failure
+	 */
+	public void retried() {
+		++mRetries;
+	}
+	
+	/**
+	 * Update the speeds, called periodically
+	 */
+	public void sample(long now) {
+		mMeter.sample(mBytes, now);
+	}
+	
+	public int getId() {
+		return mThread.mThreadID;
+	}
+	
+	public long getStartByte() {
+		return mThread.mStartByte;
+	}
+	
+	public long getEndByte() {
+		return mThread.mEndByte;
+	}
+	
+	public boolean isFinished() {
+		return mThread.isFinished();
+	}
+	
+	/**
+	 * Get the bytes downloaded by the segment
+	 */
+	public long getBytes() {
+		return mBytes;
+	}
+	
+	/**
+	 * Get the speed over the last sampling interval (in bytes per second)
+	 */
+	public double getBytesPerSecond() {
+		return mMeter.getRate();
+	}
+	
+	/**
+	 * Get the moving average of the speed (in bytes per second)
+	 */
+	public double getAverageBytesPerSecond() {
+		return mMeter.getAverageRate();
+	}
+	
+	/**
+	 * Get the time to open the connection of the last request (in milliseconds), -1 if unknown
+	 */
+	public double getConnectLatency() {
+		return toMillis(mConnectLatency);
+	}
+	
+	/**
+	 * Get the time from the last request to its response (in milliseconds), -1 if unknown
+	 */
+	public double getTimeToFirstByte() {
+		return toMillis(mTimeToFirstByte);
+	}
+	
+	/**
+	 * Get the time spent waiting for data longer than STALL_THRESHOLD (in milliseconds)
+	 */
+	public double getStallTime() {
+		return toMillis(mStallTime);
+	}
+	
+	public int getRetries() {
+		return mRetries;
+	}
+	
+	/**
+	 * Get the estimated time left (in seconds), -1 if unknown
+	 */
+	public double getEta() {
+		return DownloadMetrics.getEta(mThread.getRemaining(), mMeter.getAverageRate());
+	}
+	
+	static double toMillis(long nanos) {
+		return (nanos < 0) ? -1 : nanos / 1e6;
+	}
+}
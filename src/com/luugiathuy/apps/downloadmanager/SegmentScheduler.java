@@ -0,0 +1,417 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out the segments of a download to a limited number of connections.
+ * Segments are started on demand; once none is left, an idle connection
+ * takes over the second half of the in-flight range furthest from finishing.
+ * Each running segment holds a connection of the shared ConnectionPool.
+ * The number of connections is adjusted by a ConnectionTuner from the speed
+ * measured while all of them are busy. When it is lowered, the segments
+ * above it give the rest of their range back, and the next measurement
+ * starts once they have stopped.
+ * With mirrors, each segment goes to the source with the most speed per
+ * segment running on it, so the segments are spread by the speed per
+ * connection measured for each source. A source much slower than the best
+ * one is dropped and its segments start again on the others.
+ * The scheduler waits on a lock rather than a monitor so that it does not
+ * pin the carrier when running on a virtual thread.
+ */
+public class SegmentScheduler {
+	
+	/** The smallest range a segment is split into */
+	public static final int MIN_SPLIT_SIZE = Downloader.MIN_DOWNLOAD_SIZE;
+	
+	/** Time between two speed measurements (in nanoseconds) */
+	private static final long TUNE_INTERVAL = 2000000000L;
+	
+	/** A source slower per connection than this part of the best source is too slow */
+	private static final double SLOW_SOURCE_RATIO = 0.2;
+	
+	/** Number of measurements in a row a source must be too slow to be dropped */
+	private static final int SLOW_SOURCE_COUNT = 3;
+	
+	// Member variables
+	private Downloader mDownloader;
+	private ConnectionPool mConnectionPool;
+	private ConnectionTuner mTuner;
+	private int mMaxActive;
+	private boolean mIsSaturated;
+	private boolean mIsChanging;
+	private long mLastTune;
+	private long mLastDownloaded;
+	private LinkedList<Downloader.DownloadThread> mPending;
+	private ArrayList<Downloader.DownloadThread> mActive;
+	private ArrayList<Downloader.DownloadThread> mStopping;
+	private ReentrantLock mLock;
+	private Condition mChanged;
+	
+	/**
+	 * Constructor
+	 * @param downloader
+	 * @param connectionPool
+	 * @param tuner gives the max. number of segments downloading at the same time
+	 */
+	public SegmentScheduler(Downloader downloader, ConnectionPool connectionPool, ConnectionTuner tuner) {
+		mDownloader = downloader;
+		mConnectionPool = connectionPool;
+		mTuner = tuner;
+		mMaxActive = tuner.getConnections();
+		mIsSaturated = true;
+		mIsChanging = false;
+		mLastTune = System.nanoTime();
+		mLastDownloaded = downloader.mDownloaded.sum();
+		mPending = new LinkedList<Downloader.DownloadThread>();
+		mActive = new ArrayList<Downloader.DownloadThread>();
+		mStopping = new ArrayList<Downloader.DownloadThread>();
+		mLock = new ReentrantLock();
+		mChanged = mLock.newCondition();
+		
+		for (int i=0; i<downloader.mListDownloadThread.size(); ++i) {
+			Downloader.DownloadThread aThread = downloader.mListDownloadThread.get(i);
+			if (!aThread.isFinished())
+				mPending.add(aThread);
+		}
+	}
+	
+	/**
+	 * Keep the connections busy until all segments are finished or the
+	 * download is no longer in DOWNLOADING state
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		mLock.lock();
+		try {
+			while (true) {
+				boolean isDownloading = (mDownloader.getState() == Downloader.DOWNLOADING);
+				if (isDownloading) {
+					tuneConnections();
+					stopExtraSegments();
+					fillConnections();
+					// measure the new number of connections from when it is in use
+					if (mIsChanging && mStopping.isEmpty())
+						startMeasurement();
+				}
+				
+				// wait for the running segments to stop, even if paused or in error,
+				// and for a free connection if segments are left
+				if (mActive.isEmpty() && (!isDownloading || mPending.isEmpty()))
+					break;
+				
+				mChanged.awaitNanos(Math.max(1, mLastTune + TUNE_INTERVAL - System.nanoTime()));
+			}
+		} finally {
+			mLock.unlock();
+			mConnectionPool.cancelWaiting(this);
+		}
+	}
+	
+	/**
+	 * Called by a download thread when it stops
+	 */
+	public void segmentFinished(Downloader.DownloadThread thread) {
+		mLock.lock();
+		try {
+			if (mActive.remove(thread)) {
+				mStopping.remove(thread);
+				mConnectionPool.release(thread.mURL);
+				thread.mSource.mActive--;
+				// the rest of the range goes to another source
+				if (!thread.isFinished() && thread.mSource.isDropped()
+						&& mDownloader.getState() == Downloader.DOWNLOADING)
+					mPending.addFirst(thread);
+			}
+			mChanged.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Add a segment to download before the pending ones, e.g. a range which
+	 * failed verification
+	 */
+	public void requeue(Downloader.DownloadThread thread) {
+		mLock.lock();
+		try {
+			mPending.addFirst(thread);
+			mChanged.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called by the connection pool when a connection may be available
+	 */
+	public void connectionAvailable() {
+		mLock.lock();
+		try {
+			mChanged.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Get the max. number of segments downloading at the same time
+	 */
+	public int getMaxActive() {
+		mLock.lock();
+		try {
+			return mMaxActive;
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Measure the speed once per interval and let the tuner pick the number
+	 * of connections. Intervals in which not all connections were busy, e.g.
+	 * when waiting for the pool or at the end of the file, or in which the
+	 * number of connections changed, are not used.
+	 */
+	private void tuneConnections() {
+		long now = System.nanoTime();
+		if (now - mLastTune < TUNE_INTERVAL)
+			return;
+		
+		measureSources((now - mLastTune) / 1e9);
+		
+		long downloaded = mDownloader.mDownloaded.sum();
+		if (mIsSaturated && !mIsChanging) {
+			double rate = (downloaded - mLastDownloaded) * 1e9 / (now - mLastTune);
+			int maxActive = mTuner.update(rate);
+			if (maxActive != mMaxActive) {
+				System.out.println("Connections: " + mMaxActive + " -> " + maxActive);
+				mMaxActive = maxActive;
+				mIsChanging = true;
+			}
+		}
+		
+		mIsSaturated = true;
+		mLastTune = now;
+		mLastDownloaded = downloaded;
+	}
+	
+	/**
+	 * Start the measurement interval now, once the new number of connections
+	 * is in use
+	 */
+	private void startMeasurement() {
+		mIsChanging = false;
+		mLastTune = System.nanoTime();
+		mLastDownloaded = mDownloader.mDownloaded.sum();
+		
+		List<DownloadSource> sources = mDownloader.getUsableSources();
+		for (int i=0; i<sources.size(); ++i) {
+			DownloadSource source = sources.get(i);
+			source.mLastBytes = source.getBytes();
+			source.mLastActive = source.mActive;
+		}
+	}
+	
+	/**
+	 * Measure the speed per connection of each source which had segments
+	 * running over the whole interval, and drop the sources which are too
+	 * slow compared to the best one several times in a row
+	 * @param seconds length of the interval
+	 */
+	private void measureSources(double seconds) {
+		List<DownloadSource> sources = mDownloader.getUsableSources();
+		double bestRate = 0;
+		for (int i=0; i<sources.size(); ++i) {
+			DownloadSource source = sources.get(i);
+			long bytes = source.getBytes();
+			if (source.mActive > 0 && source.mLastActive > 0) {
+				double connections = (source.mActive + source.mLastActive) / 2.0;
+				source.mConnectionRate = (bytes - source.mLastBytes) / seconds / connections;
+				bestRate = Math.max(bestRate, source.mConnectionRate);
+			} else {
+				source.mSlowCount = 0;
+			}
+			source.mLastBytes = bytes;
+			source.mLastActive = source.mActive;
+		}
+		
+		if (sources.size() < 2)
+			return;
+		for (int i=0; i<sources.size(); ++i) {
+			DownloadSource source = sources.get(i);
+			if (source.mActive == 0)
+				continue;
+			if (source.mConnectionRate >= bestRate * SLOW_SOURCE_RATIO) {
+				source.mSlowCount = 0;
+			} else if (++source.mSlowCount >= SLOW_SOURCE_COUNT) {
+				mDownloader.dropSource(source, (long)source.mConnectionRate + " bytes/s per connection");
+			}
+		}
+	}
+	
+	/**
+	 * Stop the segments running above the max. number: the one with the most
+	 * bytes left keeps only a small part of its range, and the rest is added
+	 * before the pending segments
+	 */
+	private void stopExtraSegments() {
+		while (mActive.size() - mStopping.size() > mMaxActive) {
+			Downloader.DownloadThread largest = null;
+			for (int i=0; i<mActive.size(); ++i) {
+				Downloader.DownloadThread aThread = mActive.get(i);
+				if (!mStopping.contains(aThread)
+						&& (largest == null || aThread.getRemaining() > largest.getRemaining()))
+					largest = aThread;
+			}
+			
+			// a segment too small to split, or without ranges, runs to its end
+			mStopping.add(largest);
+			Downloader.DownloadThread rest = split(largest, true);
+			if (rest != null)
+				mPending.addFirst(rest);
+		}
+	}
+	
+	/**
+	 * Start segments until all connections are in use
+	 */
+	private void fillConnections() {
+		while (mActive.size() < mMaxActive) {
+			DownloadSource source = acquireSource();
+			if (source == null) {
+				mIsSaturated = false;
+				return;
+			}
+			
+			Downloader.DownloadThread next = mPending.poll();
+			if (next == null)
+				next = stealSegment();
+			if (next == null) {
+				mConnectionPool.release(source.getURL());
+				mIsSaturated = false;
+				return;
+			}
+			
+			next.setSource(source);
+			source.mActive++;
+			mActive.add(next);
+			next.download();
+		}
+	}
+	
+	/**
+	 * Take a connection to the source which would give the next segment the
+	 * most speed: its speed per connection shared by the segments running
+	 * on it plus the new one. A source not measured yet counts with the
+	 * average of the others; the sources whose circuit is open come last.
+	 * @return the source, null if no connection is available
+	 */
+	private DownloadSource acquireSource() {
+		List<DownloadSource> sources = mDownloader.getUsableSources();
+		double totalRate = 0;
+		int measured = 0;
+		for (int i=0; i<sources.size(); ++i) {
+			if (sources.get(i).mConnectionRate > 0) {
+				totalRate += sources.get(i).mConnectionRate;
+				++measured;
+			}
+		}
+		final double defaultRate = (measured == 0) ? 1 : totalRate / measured;
+		final CircuitBreaker circuitBreaker = mDownloader.mCircuitBreaker;
+		
+		Collections.sort(sources, new Comparator<DownloadSource>() {
+			public int compare(DownloadSource a, DownloadSource b) {
+				return Double.compare(getScore(b), getScore(a));
+			}
+			
+			private double getScore(DownloadSource source) {
+				if (circuitBreaker.isOpen(source.getURL()))
+					return 0;
+				double rate = (source.mConnectionRate > 0) ? source.mConnectionRate : defaultRate;
+				return rate / (source.mActive + 1);
+			}
+		});
+		
+		for (int i=0; i<sources.size(); ++i) {
+			if (mConnectionPool.tryAcquire(sources.get(i).getURL(), this))
+				return sources.get(i);
+		}
+		return null;
+	}
+	
+	/**
+	 * Split the in-flight segment with the most bytes left
+	 * @return the new segment, null if nothing is worth splitting
+	 */
+	private Downloader.DownloadThread stealSegment() {
+		Downloader.DownloadThread slowest = null;
+		for (int i=0; i<mActive.size(); ++i) {
+			Downloader.DownloadThread aThread = mActive.get(i);
+			if (!mStopping.contains(aThread)
+					&& (slowest == null || aThread.getRemaining() > slowest.getRemaining()))
+				slowest = aThread;
+		}
+		
+		if (slowest == null)
+			return null;
+		return split(slowest, false);
+	}
+	
+	/**
+	 * Give away the end of the range of a segment as a new segment
+	 * @param isRest give away all but MIN_SPLIT_SIZE bytes, instead of the second half
+	 * @return the new segment, null if the range cannot be split
+	 */
+	private Downloader.DownloadThread split(Downloader.DownloadThread segment, boolean isRest) {
+		// without ranges, the rest of the file cannot be requested apart
+		if (!mDownloader.isRangeSupported())
+			return null;
+		
+		// split and add under the list's lock, so the journal never sees the
+		// second half missing from both segments
+		synchronized (mDownloader.mListDownloadThread) {
+			// only this thread changes the end byte, so it is still valid after the split
+			long endByte = segment.getEndByte();
+			long splitByte = isRest ? segment.splitRest(MIN_SPLIT_SIZE) : segment.split(MIN_SPLIT_SIZE);
+			if (splitByte == -1)
+				return null;
+			
+			System.out.println("Split thread " + segment.mThreadID + " at " + splitByte);
+			Downloader.DownloadThread aThread = mDownloader.createDownloadThread(
+					mDownloader.mListDownloadThread.size() + 1, splitByte, endByte);
+			mDownloader.mListDownloadThread.add(aThread);
+			return aThread;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+Copyright (c) 2011-present - Luu Gia Thuy
+
+Permission is hereby granted, free of charge, to any person
+obtaining a copy of this software and associated documentation
+files (the "Software"), to deal in the Software without
+restriction, including without limitation the rights to use,
+copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following
+conditions:
+
+The above copyright notice and this permission notice shall be
+included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.luugiathuy.apps.downloadmanager;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free token bucket limiting the number of bytes per second. Each
+ * caller reserves the time its bytes take at the configured rate with a
+ * single compare-and-set and then sleeps until the reservation is due, so
+ * the threads sharing a bucket are served in the order they arrive. Up to
+ * one second's worth of bytes may be taken at once after an idle period.
+ * Changing the rate wakes up the sleeping threads, which take their bytes
+ * again at the new rate.
+ */
+public class TokenBucket {
+	
+	/** Rate meaning no limit */
+	public static final long UNLIMITED = 0;
+	
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	
+	// Member variables
+	private volatile long mRate;
+	/** The time (System.nanoTime) at which all reserved bytes are sent */
+	private AtomicLong mReservedUntil;
+	/** Number of rate changes, telling a woken up thread its reservation is dropped */
+	private volatile int mRateChanges;
+	/** Threads sleeping until their reservation is due */
+	private Set<Thread> mSleeping;
+	
+	/**
+	 * Constructor
+	 * @param rate max. bytes per second, UNLIMITED for no limit
+	 */
+	public TokenBucket(long rate) {
+		mReservedUntil = new AtomicLong(System.nanoTime());
+		mRateChanges = 0;
+		mSleeping = ConcurrentHashMap.newKeySet();
+		setRate(rate);
+	}
+	
+	/**
+	 * Get the max. bytes per second, UNLIMITED if there is no limit
+	 */
+	public long getRate() {
+		return mRate;
+	}
+	
+	/**
+	 * Set the max. bytes per second, UNLIMITED for no limit. Reservations
+	 * made at the old rate are dropped, and the threads sleeping for them
+	 * woken up.
+	 */
+	public synchronized void setRate(long value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Invalid rate: " + value);
+		
+		mReservedUntil.set(System.nanoTime());
+		mRate = value;
+		mRateChanges++;
+		for (Thread thread : mSleeping)
+			LockSupport.unpark(thread);
+	}
+	
+	/**
+	 * Take the tokens for the given number of bytes, sleeping as long as the
+	 * rate requires. Like LockSupport.parkNanos(), the sleep may end early
+	 * when the thread is unparked.
+	 * @param bytes
+	 */
+	public void acquire(int bytes) {
+		while (true) {
+			int rateChanges = mRateChanges;
+			long rate = mRate;
+			if (rate == UNLIMITED)
+				return;
+			
+			long cost = bytes * NANOS_PER_SECOND / rate;
+			long now, reservedUntil, newReservedUntil;
+			do {
+				now = System.nanoTime();
+				reservedUntil = mReservedUntil.get();
+				newReservedUntil = Math.max(reservedUntil, now) + cost;
+			} while (!mReservedUntil.compareAndSet(reservedUntil, newReservedUntil));
+			
+			// allow a burst of one second before making the caller wait
+			long wait = newReservedUntil - now - NANOS_PER_SECOND;
+			if (wait <= 0)
+				return;
+			
+			// registered before checking the rate, so setRate() either is
+			// seen or unparks this thread
+			Thread current = Thread.currentThread();
+			mSleeping.add(current);
+			try {
+				if (mRateChanges == rateChanges)
+					LockSupport.parkNanos(this, wait);
+			} finally {
+				mSleeping.remove(current);
+			}
+			
+			if (mRateChanges == rateChanges)
+				return;
+		}
+	}
+}